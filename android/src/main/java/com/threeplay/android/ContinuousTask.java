@@ -1,21 +1,27 @@
 package com.threeplay.android;
 
+import android.os.AsyncTask;
 import android.util.Log;
 
+import com.threeplay.core.HashedWheelTimer;
 import com.threeplay.core.Promise;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by eliranbe on 1/25/17.
+ *
+ * Only the waiting happens on the shared timer, task() and the handling of its promise run on the
+ * executor so a slow task doesn't hold up every other timeout.
  */
 public abstract class ContinuousTask {
     public final static int DEFAULT_INTERVAL = -2;
     public final static int STOP = -1;
     public final static int NO_DELAY = 0;
 
-    private Timer timer;
+    private final Executor executor;
+    private HashedWheelTimer.Timeout timeout;
     private int interval;
     private long lastRequestedTime;
     private long expectedRequestTime;
@@ -25,14 +31,21 @@ public abstract class ContinuousTask {
         return seconds * 1000;
     }
 
-    private class InternalTask extends TimerTask {
+    private class ScheduledTask implements Runnable {
         @Override
         public void run() {
             cancelTimer();
+            executor.execute(new InternalTask());
+        }
+    }
+
+    private class InternalTask implements Runnable {
+        @Override
+        public void run() {
             long elapsesTime = System.currentTimeMillis() - lastRequestedTime;
              Promise<Integer> promise = task(elapsesTime);
             if ( promise != null ) {
-                promise.then(processTaskResult(), processTaskFailure());
+                promise.thenOn(executor, processTaskResult(), processTaskFailure());
             }
             else {
                 taskFailed();
@@ -66,11 +79,18 @@ public abstract class ContinuousTask {
     }
 
     private void taskFailed(){
-        startNextWithInterval(interval);
+        if ( !cancelTask ) {
+            startNextWithInterval(interval);
+        }
     }
 
     public ContinuousTask(int interval) {
+        this(interval, AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    public ContinuousTask(int interval, Executor executor) {
         this.interval = interval;
+        this.executor = executor;
     }
 
     public void setInterval(int interval){
@@ -78,16 +98,15 @@ public abstract class ContinuousTask {
     }
 
     public boolean isRunning() {
-        return timer != null;
+        return timeout != null;
     }
 
     public synchronized void start(int delay) {
         cancelTimer();
         cancelTask = false;
-        timer = new Timer();
         lastRequestedTime = System.currentTimeMillis();
         expectedRequestTime = lastRequestedTime + delay;
-        timer.schedule(new InternalTask(), delay);
+        timeout = HashedWheelTimer.shared().schedule(new ScheduledTask(), delay, TimeUnit.MILLISECONDS);
     }
 
     public abstract Promise<Integer> task(long elapsedTime);
@@ -98,9 +117,9 @@ public abstract class ContinuousTask {
     }
 
     private synchronized void cancelTimer(){
-        if (timer != null) {
-            timer.cancel();
+        if (timeout != null) {
+            timeout.cancel();
         }
-        timer = null;
+        timeout = null;
     }
 }
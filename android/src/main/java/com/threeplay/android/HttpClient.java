@@ -19,6 +19,7 @@ import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -175,7 +176,17 @@ public class HttpClient {
                         long startTime = System.currentTimeMillis();
                         HttpURLConnection conn = null;
                         try {
+                            if ( defer.isCanceled() ) {
+                                throw new CancellationException();
+                            }
                             conn = (HttpURLConnection) path.openConnection();
+                            final HttpURLConnection connection = conn;
+                            defer.onCancel(new Runnable() {
+                                @Override
+                                public void run() {
+                                    connection.disconnect();
+                                }
+                            });
                             conn.setRequestMethod(method);
                             if (contentType != null) {
                                 conn.setRequestProperty("Content-Type", contentType);
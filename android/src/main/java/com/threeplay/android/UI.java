@@ -12,13 +12,18 @@ import android.graphics.drawable.Drawable;
 import android.graphics.drawable.PaintDrawable;
 import android.graphics.drawable.ShapeDrawable;
 import android.graphics.drawable.shapes.RectShape;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
 
+import com.threeplay.core.BatchingExecutor;
 import com.threeplay.core.Promise;
 
+import java.util.concurrent.Executor;
+
 import static android.graphics.Paint.ANTI_ALIAS_FLAG;
 
 /**
@@ -45,6 +50,25 @@ public class UI {
         }
     }
 
+    private static Executor mainThreadExecutor;
+
+    /**
+     * Executor running on the main looper, continuations submitted before it drains are posted together.
+     * @return Shared main thread executor
+     */
+    public static synchronized Executor mainThreadExecutor(){
+        if ( mainThreadExecutor == null ) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            mainThreadExecutor = new BatchingExecutor(new Executor() {
+                @Override
+                public void execute(Runnable runnable) {
+                    handler.post(runnable);
+                }
+            });
+        }
+        return mainThreadExecutor;
+    }
+
     public static Promise<Surface> surfaceOfSurfaceView(SurfaceView surfaceView){
         final Promise.Defer<Surface> defer = Promise.defer();
         surfaceView.getHolder().addCallback(new SurfaceHolder.Callback() {
@@ -71,6 +71,9 @@ public abstract class BitmapLoader {
         new Thread(new Runnable() {
             @Override
             public void run() {
+                if ( defer.isCanceled() ) {
+                    return;
+                }
                 try {
                     Bitmap result = immediateFetch(request);
                     defer.resolveWithResult(result);
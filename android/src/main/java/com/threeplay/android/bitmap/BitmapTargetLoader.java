@@ -4,11 +4,10 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.drawable.AnimationDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 import android.widget.ImageView;
 
+import com.threeplay.android.UI;
 import com.threeplay.core.Promise;
 
 import java.util.concurrent.ConcurrentHashMap;
@@ -67,12 +66,13 @@ public class BitmapTargetLoader {
     }
 
     public void into(final ImageView imageView){
-        coordinator.start(this, imageView);
+        final Load load = new Load();
+        coordinator.start(load, imageView);
         loadingResource.into(imageView);
-        loadRequest.fetch().any(new Promise.Handler<Bitmap>() {
+        load.setPending(loadRequest.fetch().any(new Promise.Handler<Bitmap>() {
             @Override
             public void trigger(final Promise.Triggered<Bitmap> p) throws Exception {
-                coordinator.complete(BitmapTargetLoader.this, imageView, new Runnable() {
+                coordinator.complete(load, imageView, new Runnable() {
                     @Override
                     public void run() {
                         if ( p.wasSuccessful() ) {
@@ -84,9 +84,35 @@ public class BitmapTargetLoader {
                     }
                 });
             }
-        });
+        }));
     }
 
+    /**
+     * A single into() call, a newer load into the same target cancels it even before its fetch is pending.
+     */
+    private static class Load {
+        private Promise<Bitmap> pending;
+        private boolean canceled;
+
+        void setPending(Promise<Bitmap> pending){
+            synchronized ( this ) {
+                this.pending = pending;
+                if ( !canceled ) return;
+            }
+            pending.cancel();
+        }
+
+        void cancel(){
+            Promise<Bitmap> pending;
+            synchronized ( this ) {
+                canceled = true;
+                pending = this.pending;
+            }
+            if ( pending != null ) {
+                pending.cancel();
+            }
+        }
+    }
 
     private static class ImageResourceHolder {
         void into(ImageView imageView){
@@ -124,18 +150,21 @@ public class BitmapTargetLoader {
     }
 
     private static class BitmapTargetLoaderCoordinator {
-        private ConcurrentHashMap<ImageView, BitmapTargetLoader> activeLoader = new ConcurrentHashMap<>();
+        private ConcurrentHashMap<ImageView, Load> activeLoad = new ConcurrentHashMap<>();
 
-        public void start(BitmapTargetLoader bitmapTargetLoader, ImageView imageView) {
-            activeLoader.put(imageView, bitmapTargetLoader);
+        public void start(Load load, ImageView imageView) {
+            Load previousLoad = activeLoad.put(imageView, load);
+            if ( previousLoad != null ) {
+                previousLoad.cancel();
+            }
         }
 
-        private void complete(final BitmapTargetLoader bitmapTargetLoader, final ImageView imageView, final Runnable runnable){
-            if ( activeLoader.get(imageView) == bitmapTargetLoader ) {
-                new Handler(Looper.getMainLooper()).post(new Runnable() {
+        private void complete(final Load load, final ImageView imageView, final Runnable runnable){
+            if ( activeLoad.get(imageView) == load ) {
+                UI.mainThreadExecutor().execute(new Runnable() {
                     @Override
                     public void run() {
-                        if ( activeLoader.remove(imageView, bitmapTargetLoader) ) {
+                        if ( activeLoad.remove(imageView, load) ) {
                             runnable.run();
                         }
                         else {
@@ -99,11 +99,14 @@ public class PersistentFetcher<T> {
     private class FetchTask extends ContinuousTask {
         private int timeFromLastRequest = 0;
         private int nextRequestTime = 0;
+        private volatile Promise<Integer> pendingFetch;
+
         public FetchTask() {
             super(100);
         }
 
         public void startFetch(){
+            cancelPendingFetch();
             timeFromLastRequest = 0;
             nextRequestTime = 0;
             retryStrategy.reset();
@@ -116,14 +119,29 @@ public class PersistentFetcher<T> {
             if ( timeFromLastRequest >= nextRequestTime ) {
                 timeFromLastRequest = 0;
                 nextRequestTime = retryStrategy.nextRetryInMillis();
-                return fetch().filter(new Promise.Filter<T, Integer>() {
+                pendingFetch = fetch().filter(new Promise.Filter<T, Integer>() {
                     @Override
                     public void filter(Promise.Defer<Integer> defer, boolean successful, T result, Exception exception) {
                         defer.resolveWithResult(successful ? STOP : DEFAULT_INTERVAL);
                     }
                 });
+                return pendingFetch;
             }
             return null;
         }
+
+        @Override
+        public void cancel() {
+            super.cancel();
+            cancelPendingFetch();
+        }
+
+        private void cancelPendingFetch(){
+            Promise<Integer> pendingFetch = this.pendingFetch;
+            this.pendingFetch = null;
+            if ( pendingFetch != null ) {
+                pendingFetch.cancel();
+            }
+        }
     }
 }
@@ -0,0 +1,63 @@
+package com.threeplay.core;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Executor that coalesces runnables submitted while a drain is pending into a single
+ * submission to the target executor, e.g. to hop many promise continuations to the
+ * main thread with one post.
+ */
+public class BatchingExecutor implements Executor {
+    private final Executor target;
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public BatchingExecutor(Executor target){
+        this.target = target;
+    }
+
+    @Override
+    public void execute(Runnable runnable) {
+        pending.add(runnable);
+        try {
+            scheduleDrain();
+        } catch ( RuntimeException e ) {
+            pending.remove(runnable);
+            throw e;
+        }
+    }
+
+    private void scheduleDrain(){
+        if ( scheduled.compareAndSet(false, true) ) {
+            try {
+                target.execute(drain);
+            } catch ( RuntimeException e ) {
+                scheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private void drain(){
+        try {
+            Runnable runnable;
+            while ( (runnable = pending.poll()) != null ) {
+                runnable.run();
+            }
+        } finally {
+            scheduled.set(false);
+            if ( !pending.isEmpty() ) {
+                scheduleDrain();
+            }
+        }
+    }
+}
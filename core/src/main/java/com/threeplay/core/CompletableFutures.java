@@ -0,0 +1,105 @@
+package com.threeplay.core;
+
+import android.support.annotation.RequiresApi;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * Adapters between Promise and CompletableFuture. CompletableFuture only exists from API 24, so these
+ * live apart from Promise and PromiseFuture, which are safe to load on every API level.
+ *
+ * Exceptions cross over unchanged (CompletionException wrappers are unwrapped), a canceled promise cancels
+ * the future and a canceled future cancels the promise.
+ */
+@RequiresApi(24)
+public class CompletableFutures {
+
+    private CompletableFutures() {
+    }
+
+    /**
+     * Returns a future completed with the outcome of the promise. Canceling it cancels its subscription
+     * to the promise, which cancels the promise itself once no other dependent is waiting for it.
+     */
+    public static <T> CompletableFuture<T> toCompletableFuture(Promise<T> promise) {
+        final PromiseCompletableFuture<T> future = new PromiseCompletableFuture<>();
+        future.subscription = promise.any(new Promise.Handler<T>() {
+            @Override
+            public void trigger(Promise.Triggered<T> p) throws Exception {
+                if ( p.wasSuccessful() ) {
+                    future.complete(p.getResult());
+                }
+                else if ( p.getException() instanceof CancellationException ) {
+                    future.cancelFromPromise();
+                }
+                else {
+                    future.completeExceptionally(p.getException());
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Returns a promise triggered with the outcome of the stage, on the thread completing it.
+     * Canceling the promise cancels the stage's CompletableFuture.
+     */
+    public static <T> Promise<T> fromCompletionStage(CompletionStage<T> stage) {
+        final Promise.Defer<T> defer = Promise.defer();
+        final CompletableFuture<T> future = stage.toCompletableFuture();
+        defer.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                future.cancel(true);
+            }
+        });
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T result, Throwable throwable) {
+                if ( throwable == null ) {
+                    defer.resolveWithResult(result);
+                    return;
+                }
+                Exception e = unwrap(throwable);
+                if ( e instanceof CancellationException ) {
+                    defer.promise.cancel();
+                }
+                else {
+                    defer.rejectWithException(e);
+                }
+            }
+        });
+        return defer.promise;
+    }
+
+    private static Exception unwrap(Throwable throwable) {
+        if ( (throwable instanceof CompletionException || throwable instanceof ExecutionException)
+                && throwable.getCause() != null ) {
+            throwable = throwable.getCause();
+        }
+        return throwable instanceof Exception ? (Exception)throwable : new ExecutionException(throwable);
+    }
+
+    private static class PromiseCompletableFuture<T> extends CompletableFuture<T> {
+        private volatile Promise<T> subscription;
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean canceled = super.cancel(mayInterruptIfRunning);
+            Promise<T> subscription = this.subscription;
+            if ( canceled && subscription != null ) {
+                subscription.cancel();
+            }
+            return canceled;
+        }
+
+        void cancelFromPromise() {
+            super.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.threeplay.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * JobQueue keeping its jobs in a JobJournal until they're done, so jobs pending when the process dies
+ * run again once the queue is restored.
+ *
+ * A job is removed from the journal once its promise is triggered, whether it succeeded, failed or was
+ * canceled: jobs executing when the process died run again, so they should be safe to repeat. Only the
+ * job and its priority are journaled, tags and deadlines aren't.
+ */
+public class DurableJobQueue<T> extends JobQueue<T> {
+
+    public interface Serializer<T> {
+        /**
+         * @return The job's data, null for a job that doesn't need to survive the process
+         */
+        byte[] serialize(Job<T> job) throws IOException;
+
+        Job<T> deserialize(byte[] data) throws IOException;
+    }
+
+    private final JobJournal journal;
+    private final Serializer<T> serializer;
+    private boolean restored;
+
+    public DurableJobQueue(JobJournal journal, Serializer<T> serializer, Policy policy){
+        super(policy);
+        this.journal = journal;
+        this.serializer = serializer;
+    }
+
+    public DurableJobQueue(JobJournal journal, Serializer<T> serializer, Policy policy, Executor executor){
+        super(policy, executor);
+        this.journal = journal;
+        this.serializer = serializer;
+    }
+
+    public JobJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Submits the jobs the journal held when it was opened, with their priorities. They queue like new
+     * submissions, so jobs of the same priority submitted before restore() run first. Jobs that can't be
+     * deserialized or queued are logged and dropped from the journal, the others are still restored.
+     * @return Handles of the restored jobs, empty if the queue was already restored
+     */
+    public List<Handle<T>> restore(){
+        List<JobJournal.Entry> entries;
+        synchronized ( this ) {
+            if ( restored ) return new ArrayList<>();
+            restored = true;
+            entries = journal.replayed();
+        }
+        List<Handle<T>> handles = new ArrayList<>(entries.size());
+        for ( JobJournal.Entry entry: entries ) {
+            try {
+                Job<T> job = serializer.deserialize(entry.getData());
+                handles.add(journaled(super.submit(job, entry.getPriority(), null, NO_DEADLINE), entry.getId()));
+            } catch ( IOException | RuntimeException e ) {
+                Logger.e("DurableJobQueue: dropping job %d of %s, %s", entry.getId(), journal.getFile(), e);
+                journal.remove(entry.getId());
+            }
+        }
+        return handles;
+    }
+
+    /**
+     * Journals the job before queuing it, see flush() to wait until it's on disk.
+     * @throws IllegalArgumentException If the job can't be serialized
+     */
+    @Override
+    public Handle<T> submit(Job<T> job, int priority, Object tag, long deadlineMillis){
+        byte[] data;
+        try {
+            data = serializer.serialize(job);
+        } catch ( IOException e ) {
+            throw new IllegalArgumentException("Can't serialize " + job, e);
+        }
+        if ( data == null ) {
+            return super.submit(job, priority, tag, deadlineMillis);
+        }
+        long id = journal.append(priority, data);
+        return journaled(super.submit(job, priority, tag, deadlineMillis), id);
+    }
+
+    /**
+     * @return Promise resolved once every job submitted so far is on disk
+     */
+    public Promise<Void> flush(){
+        return journal.flush();
+    }
+
+    private Handle<T> journaled(Handle<T> handle, final long id){
+        handle.getPromise().observe(new Promise.Handler<T>() {
+            @Override
+            public void trigger(Promise.Triggered<T> p) throws Exception {
+                journal.remove(id);
+            }
+        });
+        return handle;
+    }
+}
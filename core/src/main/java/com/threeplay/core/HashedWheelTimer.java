@@ -0,0 +1,262 @@
+package com.threeplay.core;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Timer scheduling tasks on a hashed timing wheel served by a single daemon thread, scheduling and
+ * canceling are O(1) and don't block. Deadlines are rounded up to the tick duration.
+ *
+ * Tasks run on the timer thread and should hand off anything slow to an executor. The thread is
+ * started with the first task and parks while no task is pending, stop() ends it for good.
+ */
+public class HashedWheelTimer {
+    private final static int TRANSFERS_PER_TICK = 100000;
+
+    private static HashedWheelTimer shared;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime = System.nanoTime();
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> canceled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final String name;
+
+    private Thread worker;
+    private volatile boolean idle;
+    private volatile boolean stopped;
+    private long tick;
+
+    /**
+     * The timer used by Promise.timeout(), Promise.delay() and Defer.deadline(), ticking every 10ms.
+     */
+    public static synchronized HashedWheelTimer shared() {
+        if ( shared == null ) {
+            shared = new HashedWheelTimer("PromiseTimer", 10, TimeUnit.MILLISECONDS, 512);
+        }
+        return shared;
+    }
+
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if ( tickDuration <= 0 ) throw new IllegalArgumentException("tickDuration must be positive");
+        if ( ticksPerWheel <= 0 ) throw new IllegalArgumentException("ticksPerWheel must be positive");
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if ( size < ticksPerWheel ) size <<= 1;
+        this.name = name;
+        this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        this.wheel = new Bucket[size];
+        this.mask = size - 1;
+        for ( int i = 0; i < size; i++ ) {
+            wheel[i] = new Bucket();
+        }
+    }
+
+    /**
+     * @throws IllegalStateException If the timer was stopped
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if ( stopped ) throw new IllegalStateException(name + " was stopped");
+        long deadline = System.nanoTime() - startTime + Math.max(0, unit.toNanos(delay));
+        Timeout timeout = new Timeout(this, task, deadline);
+        pending.incrementAndGet();
+        added.add(timeout);
+        wakeWorker();
+        return timeout;
+    }
+
+    /**
+     * Number of tasks scheduled that neither ran nor were canceled yet.
+     */
+    public int pendingTimeouts() {
+        return pending.get();
+    }
+
+    /**
+     * Ends the timer thread, tasks still pending never run. The shared timer can't be stopped.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized ( HashedWheelTimer.class ) {
+            if ( this == shared ) throw new IllegalStateException("The shared timer can't be stopped");
+        }
+        synchronized ( this ) {
+            if ( stopped ) return;
+            stopped = true;
+            thread = worker;
+        }
+        if ( thread != null ) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void wakeWorker() {
+        Thread thread;
+        synchronized ( this ) {
+            if ( stopped ) return;
+            if ( worker == null ) {
+                worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        work();
+                    }
+                }, name);
+                worker.setDaemon(true);
+                worker.start();
+                return;
+            }
+            thread = worker;
+        }
+        if ( idle ) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void work() {
+        tick = currentTick();
+        while ( !stopped ) {
+            if ( pending.get() == 0 ) {
+                transferAdded();
+                removeCanceled();
+                idle = true;
+                if ( pending.get() == 0 && !stopped ) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+                tick = Math.max(tick, currentTick());
+                continue;
+            }
+            long sleep = (tick + 1) * tickNanos - (System.nanoTime() - startTime);
+            if ( sleep > 0 ) {
+                LockSupport.parkNanos(this, sleep);
+                continue;
+            }
+            transferAdded();
+            removeCanceled();
+            wheel[(int)(tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    private long currentTick() {
+        return (System.nanoTime() - startTime) / tickNanos;
+    }
+
+    private void transferAdded() {
+        for ( int i = 0; i < TRANSFERS_PER_TICK; i++ ) {
+            Timeout timeout = added.poll();
+            if ( timeout == null ) return;
+            if ( timeout.state != Timeout.INIT ) continue;
+            long expiresAt = timeout.deadline / tickNanos;
+            timeout.rounds = Math.max(0, (expiresAt - tick) / wheel.length);
+            wheel[(int)(Math.max(expiresAt, tick) & mask)].add(timeout);
+        }
+    }
+
+    private void removeCanceled() {
+        Timeout timeout;
+        while ( (timeout = canceled.poll()) != null ) {
+            if ( timeout.bucket != null ) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    public static class Timeout {
+        private final static int INIT = 0;
+        private final static int CANCELED = 1;
+        private final static int EXPIRED = 2;
+
+        private final static AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private volatile int state = INIT;
+
+        private long rounds;
+        private Timeout prev, next;
+        private Bucket bucket;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return true if the task was canceled by this call, false if it already ran or was canceled
+         */
+        public boolean cancel() {
+            if ( !STATE.compareAndSet(this, INIT, CANCELED) ) return false;
+            timer.pending.decrementAndGet();
+            timer.canceled.add(this);
+            return true;
+        }
+
+        public boolean isCanceled() {
+            return state == CANCELED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private void expire() {
+            if ( !STATE.compareAndSet(this, INIT, EXPIRED) ) return;
+            timer.pending.decrementAndGet();
+            try {
+                task.run();
+            } catch ( Throwable e ) {
+                Logger.e("HashedWheelTimer: task failed with %s", e);
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of the timeouts hashed to a wheel slot, only touched by the timer thread.
+     */
+    private static class Bucket {
+        private Timeout head, tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            if ( tail == null ) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if ( timeout.prev != null ) timeout.prev.next = timeout.next; else head = timeout.next;
+            if ( timeout.next != null ) timeout.next.prev = timeout.prev; else tail = timeout.prev;
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        void expire() {
+            Timeout timeout = head;
+            while ( timeout != null ) {
+                Timeout next = timeout.next;
+                if ( timeout.rounds <= 0 ) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if ( timeout.state != Timeout.INIT ) {
+                    remove(timeout);
+                } else {
+                    timeout.rounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package com.threeplay.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+
+/**
+ * Append-only journal of pending jobs, see DurableJobQueue.
+ *
+ * Appends and removals are encoded into a buffer and return immediately, a writer thread writes
+ * everything buffered meanwhile with a single write and a single fsync, so the cost of syncing is
+ * shared by all the records of a batch. A batch that fails to write is cut off the file again and
+ * retried with the next one. Once most of the file is made of removed jobs the writer rewrites it
+ * with only the pending ones.
+ *
+ * Every record carries a CRC32, replaying stops at the first record that doesn't check out and
+ * truncates the file there, dropping whatever a crash left half written.
+ */
+public class JobJournal implements Closeable {
+    private final static int MAGIC = 0x4a514a31;
+    private final static byte ADD = 1;
+    private final static byte REMOVE = 2;
+    private final static int MINIMUM_COMPACTION = 1024;
+    private final static long WRITER_KEEP_ALIVE_SECONDS = 30;
+
+    private final File file;
+    private final Map<Long, Entry> pending = new LinkedHashMap<>();
+    private List<Entry> replayed = new ArrayList<>();
+    private final ExecutorService writer;
+    private final Runnable write = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    private FileChannel channel;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private List<Promise.Defer<Void>> flushWaiters = new ArrayList<>();
+    private boolean writing;
+    private boolean closed;
+    private long nextId;
+    private int removed;
+
+    public static class Entry {
+        private final long id;
+        private final int priority;
+        private final byte[] data;
+
+        Entry(long id, int priority, byte[] data){
+            this.id = id;
+            this.priority = priority;
+            this.data = data;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    /**
+     * Opens the journal, creating the file if needed, and replays the jobs it holds.
+     */
+    public static JobJournal open(File file) throws IOException {
+        JobJournal journal = new JobJournal(file);
+        journal.replay();
+        return journal;
+    }
+
+    private JobJournal(File file){
+        this.file = file;
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, WRITER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "JobJournal-" + JobJournal.this.file.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        this.writer = executor;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return Jobs appended and not removed yet, in the order they were appended
+     */
+    public synchronized List<Entry> pending(){
+        return new ArrayList<>(pending.values());
+    }
+
+    /**
+     * @return Jobs the journal held when it was opened and that weren't removed since, in the order they
+     * were appended
+     */
+    public synchronized List<Entry> replayed(){
+        List<Entry> entries = new ArrayList<>(replayed.size());
+        for ( Entry entry: replayed ) {
+            if ( pending.containsKey(entry.id) ) {
+                entries.add(entry);
+            }
+        }
+        replayed = entries;
+        return new ArrayList<>(entries);
+    }
+
+    /**
+     * Appends a job, it is durable once a following flush() resolves.
+     * @return Id to remove the job with
+     */
+    public synchronized long append(int priority, byte[] data){
+        ensureOpen();
+        Entry entry = new Entry(nextId++, priority, data);
+        pending.put(entry.id, entry);
+        encode(buffer, entry);
+        scheduleWrite();
+        return entry.id;
+    }
+
+    /**
+     * Removes a job once it's done, unknown ids are ignored.
+     */
+    public synchronized void remove(long id){
+        if ( closed || pending.remove(id) == null ) return;
+        try {
+            CheckedOutputStream record = new CheckedOutputStream(buffer, new CRC32());
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(REMOVE);
+            out.writeLong(id);
+            out.writeInt((int)record.getChecksum().getValue());
+        } catch ( IOException e ) {
+            throw new IllegalStateException(e);
+        }
+        removed++;
+        scheduleWrite();
+    }
+
+    /**
+     * @return Promise resolved once everything appended or removed so far is on disk
+     */
+    public synchronized Promise<Void> flush(){
+        Promise.Defer<Void> defer = Promise.defer();
+        if ( !writing && buffer.size() == 0 ) {
+            defer.resolveWithResult(null);
+        }
+        else {
+            flushWaiters.add(defer);
+            scheduleWrite();
+        }
+        return defer.promise;
+    }
+
+    /**
+     * Flushes the journal and closes its file, jobs still pending replay the next time it's opened.
+     */
+    @Override
+    public void close() throws IOException {
+        Promise<Void> flushed;
+        synchronized ( this ) {
+            if ( closed ) return;
+            flushed = flush();
+            closed = true;
+        }
+        try {
+            flushed.join();
+        } catch ( IOException e ) {
+            throw e;
+        } catch ( Exception e ) {
+            throw new IOException(e);
+        } finally {
+            writer.shutdown();
+            synchronized ( this ) {
+                channel.close();
+            }
+        }
+    }
+
+    private void ensureOpen(){
+        if ( closed ) throw new IllegalStateException("JobJournal is closed");
+    }
+
+    private void scheduleWrite(){
+        if ( !writing ) {
+            writing = true;
+            writer.execute(write);
+        }
+    }
+
+    /**
+     * Writes batches until nothing is buffered, runs on the writer thread only.
+     */
+    private void write(){
+        while ( true ) {
+            byte[] data;
+            List<Entry> compacted = null;
+            List<Promise.Defer<Void>> waiters;
+            synchronized ( this ) {
+                if ( buffer.size() == 0 && flushWaiters.isEmpty() ) {
+                    writing = false;
+                    return;
+                }
+                if ( removed > MINIMUM_COMPACTION && removed > pending.size() ) {
+                    compacted = new ArrayList<>(pending.values());
+                    removed = 0;
+                }
+                data = buffer.toByteArray();
+                buffer = new ByteArrayOutputStream();
+                waiters = flushWaiters;
+                flushWaiters = new ArrayList<>();
+            }
+            if ( compacted != null ) {
+                try {
+                    compact(compacted);
+                    data = new byte[0];
+                } catch ( IOException e ) {
+                    Logger.e("JobJournal: compacting %s failed with %s", file, e);
+                }
+            }
+            long size = -1;
+            try {
+                if ( data.length > 0 ) {
+                    size = channel.size();
+                    ByteBuffer bytes = ByteBuffer.wrap(data);
+                    while ( bytes.hasRemaining() ) {
+                        channel.write(bytes);
+                    }
+                    channel.force(false);
+                }
+                for ( Promise.Defer<Void> waiter: waiters ) {
+                    waiter.resolveWithResult(null);
+                }
+            } catch ( IOException e ) {
+                Logger.e("JobJournal: writing %s failed with %s", file, e);
+                for ( Promise.Defer<Void> waiter: waiters ) {
+                    waiter.rejectWithException(e);
+                }
+                if ( !retryLater(data, size) ) return;
+            }
+        }
+    }
+
+    /**
+     * Cuts off whatever part of a failed batch made it to the file and puts the batch back ahead of the
+     * records buffered meanwhile, so the next write retries it instead of appending after a torn record.
+     * @return true to keep writing for flushes requested meanwhile, false once the writer stopped
+     */
+    private boolean retryLater(byte[] data, long size){
+        if ( size >= 0 ) {
+            try {
+                channel.truncate(size);
+            } catch ( IOException e ) {
+                Logger.e("JobJournal: truncating %s failed with %s", file, e);
+            }
+        }
+        synchronized ( this ) {
+            ByteArrayOutputStream retry = new ByteArrayOutputStream(data.length + buffer.size());
+            retry.write(data, 0, data.length);
+            try {
+                buffer.writeTo(retry);
+            } catch ( IOException e ) {
+                throw new IllegalStateException(e);
+            }
+            buffer = retry;
+            if ( flushWaiters.isEmpty() ) {
+                writing = false;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Replaces the file with one holding only the pending jobs. The snapshot already reflects the
+     * batch it was taken with, so the batch itself is only written when compacting fails.
+     */
+    private void compact(List<Entry> entries) throws IOException {
+        File compacted = new File(file.getPath() + ".compact");
+        FileOutputStream out = new FileOutputStream(compacted);
+        try {
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            new DataOutputStream(records).writeInt(MAGIC);
+            for ( Entry entry: entries ) {
+                encode(records, entry);
+            }
+            records.writeTo(out);
+            out.getChannel().force(false);
+        } finally {
+            out.close();
+        }
+        synchronized ( this ) {
+            channel.close();
+            if ( !compacted.renameTo(file) ) {
+                channel = new FileOutputStream(file, true).getChannel();
+                throw new IOException("Can't replace " + file + " with its compacted journal");
+            }
+            channel = new FileOutputStream(file, true).getChannel();
+        }
+    }
+
+    private void replay() throws IOException {
+        long valid = 0;
+        if ( file.length() > 0 ) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if ( in.readInt() != MAGIC ) throw new IOException(file + " isn't a job journal");
+                valid = 4;
+                CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+                while ( true ) {
+                    long length = readRecord(new DataInputStream(checked), checked.getChecksum(), file.length() - valid);
+                    if ( length < 0 ) break;
+                    valid += length;
+                }
+            } catch ( EOFException e ) {
+                if ( valid == 0 ) throw new IOException(file + " isn't a job journal");
+            } finally {
+                in.close();
+            }
+        }
+        if ( valid == 0 ) {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                new DataOutputStream(out).writeInt(MAGIC);
+                out.getChannel().force(false);
+            } finally {
+                out.close();
+            }
+        }
+        else if ( valid < file.length() ) {
+            Logger.w("JobJournal: dropping %d damaged bytes at the end of %s", file.length() - valid, file);
+            RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+            try {
+                truncated.setLength(valid);
+            } finally {
+                truncated.close();
+            }
+        }
+        channel = new FileOutputStream(file, true).getChannel();
+        replayed = new ArrayList<>(pending.values());
+    }
+
+    /**
+     * @return Length of the record read, -1 at the end of the valid records
+     */
+    private long readRecord(DataInputStream in, Checksum checksum, long available) throws IOException {
+        checksum.reset();
+        try {
+            byte type = in.readByte();
+            if ( type == ADD ) {
+                long id = in.readLong();
+                int priority = in.readInt();
+                int length = in.readInt();
+                if ( length < 0 || length > available - 21 ) return -1;
+                byte[] data = new byte[length];
+                in.readFully(data);
+                if ( (int)checksum.getValue() != in.readInt() ) return -1;
+                pending.put(id, new Entry(id, priority, data));
+                nextId = Math.max(nextId, id + 1);
+                return 21 + length;
+            }
+            if ( type == REMOVE ) {
+                long id = in.readLong();
+                if ( (int)checksum.getValue() != in.readInt() ) return -1;
+                if ( pending.remove(id) != null ) {
+                    removed++;
+                }
+                return 13;
+            }
+            return -1;
+        } catch ( EOFException e ) {
+            return -1;
+        }
+    }
+
+    private static void encode(ByteArrayOutputStream buffer, Entry entry){
+        try {
+            CheckedOutputStream record = new CheckedOutputStream(buffer, new CRC32());
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(ADD);
+            out.writeLong(entry.id);
+            out.writeInt(entry.priority);
+            out.writeInt(entry.data.length);
+            out.write(entry.data);
+            out.writeInt((int)record.getChecksum().getValue());
+        } catch ( IOException e ) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
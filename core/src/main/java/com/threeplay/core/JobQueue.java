@@ -1,9 +1,24 @@
 package com.threeplay.core;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by eliranbe on 2/12/17.
@@ -11,97 +26,1371 @@ import java.util.Map;
 
 public class JobQueue<T> {
 
+    public final static int DEFAULT_PRIORITY = 0;
+    public final static long NO_DEADLINE = 0;
+
     public static class Policy {
+        public final static int DEFAULT_AGING_INTERVAL_MILLIS = 1000;
+
         private int maximumNumberOfConcurrentJobs;
+        private int agingIntervalMillis;
+        private boolean earliestDeadlineFirst;
 
         public Policy(int maximumNumberOfConcurrentJobs){
+            this(maximumNumberOfConcurrentJobs, DEFAULT_AGING_INTERVAL_MILLIS);
+        }
+
+        /**
+         * @param agingIntervalMillis Time after which a waiting job ranks like a job of the next priority level
+         *                            submitted when it was, 0 disables aging
+         */
+        public Policy(int maximumNumberOfConcurrentJobs, int agingIntervalMillis){
+            if ( maximumNumberOfConcurrentJobs <= 0 ) {
+                throw new IllegalArgumentException("maximumNumberOfConcurrentJobs must be positive");
+            }
+            if ( agingIntervalMillis < 0 ) {
+                throw new IllegalArgumentException("agingIntervalMillis must not be negative");
+            }
             this.maximumNumberOfConcurrentJobs = maximumNumberOfConcurrentJobs;
+            this.agingIntervalMillis = agingIntervalMillis;
+        }
+
+        /**
+         * @param earliestDeadlineFirst Run jobs in the order of their deadlines, jobs without a deadline
+         *                              after them, priority only orders jobs of equal deadlines
+         */
+        public Policy(int maximumNumberOfConcurrentJobs, int agingIntervalMillis, boolean earliestDeadlineFirst){
+            this(maximumNumberOfConcurrentJobs, agingIntervalMillis);
+            this.earliestDeadlineFirst = earliestDeadlineFirst;
+        }
+
+        public int getMaximumNumberOfConcurrentJobs() {
+            return maximumNumberOfConcurrentJobs;
+        }
+
+        public int getAgingIntervalMillis() {
+            return agingIntervalMillis;
+        }
+
+        public boolean isEarliestDeadlineFirst() {
+            return earliestDeadlineFirst;
+        }
+    }
+
+    /**
+     * A job submitted with a priority, jobs with a higher priority run first and equal ones in submission order.
+     */
+    public interface Handle<T> {
+        Promise<T> getPromise();
+
+        int getPriority();
+
+        /**
+         * Moves a job still waiting in the queue, it keeps the age it gained so far.
+         * @return false if the job already left the queue
+         */
+        boolean setPriority(int priority);
+
+        Job<T> getJob();
+
+        /**
+         * @return Group the job was submitted with, null if none
+         */
+        Object getTag();
+
+        /**
+         * Cancels the job if it's still waiting in the queue, in constant time: onCanceled() is called and
+         * the job's promise is canceled. Canceling the promise itself has the same effect.
+         * @return false if the job already left the queue
+         */
+        boolean cancel();
+    }
+
+    public interface Predicate<T> {
+        boolean matches(Handle<T> handle);
+    }
+
+    /**
+     * Snapshot of a queue's counters and latencies, see getMetrics(). Counters count since the queue was
+     * created, wait time runs from submission until the job starts executing and run time covers onExecute().
+     * Every job of a batch is counted on its own, with the run time of the whole batch.
+     */
+    public static class Metrics {
+        private final long timestampMillis;
+        private final long uptimeMillis;
+        private final int depth;
+        private final int executing;
+        private final long submitted;
+        private final long completed;
+        private final long failed;
+        private final long canceled;
+        private final long expiredDeadlines;
+        private final long missedDeadlines;
+        private final LatencyHistogram.Snapshot waitTime;
+        private final LatencyHistogram.Snapshot runTime;
+
+        Metrics(JobQueue<?> queue, int depth){
+            this.timestampMillis = System.currentTimeMillis();
+            this.uptimeMillis = queue.now();
+            this.depth = depth;
+            this.executing = queue.executingJobs.get();
+            this.submitted = queue.submittedJobs.get();
+            this.completed = queue.completedJobs.get();
+            this.failed = queue.failedJobs.get();
+            this.canceled = queue.canceledJobs.get();
+            this.expiredDeadlines = queue.expiredDeadlines.get();
+            this.missedDeadlines = queue.missedDeadlines.get();
+            this.waitTime = queue.waitTime.snapshot();
+            this.runTime = queue.runTime.snapshot();
+        }
+
+        public long getTimestampMillis() {
+            return timestampMillis;
+        }
+
+        /**
+         * @return Number of jobs waiting in the queue
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        public int getExecuting() {
+            return executing;
+        }
+
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        /**
+         * @return Number of jobs that executed successfully
+         */
+        public long getCompleted() {
+            return completed;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getCanceled() {
+            return canceled;
+        }
+
+        public long getExpiredDeadlines() {
+            return expiredDeadlines;
+        }
+
+        public long getMissedDeadlines() {
+            return missedDeadlines;
+        }
+
+        /**
+         * @return Jobs submitted per second since the queue was created
+         */
+        public double getEnqueueRate() {
+            return uptimeMillis > 0 ? submitted * 1000.0 / uptimeMillis : 0;
         }
+
+        /**
+         * @return Jobs submitted per second since an earlier snapshot of the same queue
+         */
+        public double getEnqueueRate(Metrics since) {
+            long elapsed = uptimeMillis - since.uptimeMillis;
+            return elapsed > 0 ? (submitted - since.submitted) * 1000.0 / elapsed : 0;
+        }
+
+        public LatencyHistogram.Snapshot getWaitTime() {
+            return waitTime;
+        }
+
+        public LatencyHistogram.Snapshot getRunTime() {
+            return runTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("depth=%d executing=%d submitted=%d completed=%d failed=%d canceled=%d expired=%d missed=%d wait=[%s] run=[%s]",
+                    depth, executing, submitted, completed, failed, canceled, expiredDeadlines, missedDeadlines, waitTime, runTime);
+        }
+    }
+
+    public interface MetricsListener {
+        /**
+         * Called on the timer thread, anything slow should be handed off.
+         */
+        void onMetrics(JobQueue<?> queue, Metrics metrics);
     }
 
     public interface Job<T> {
         void onQueued();
         void onCanceled();
+        /**
+         * An Error thrown here rejects the job's promise with an ExecutionException wrapping it, then
+         * propagates to the worker.
+         */
         T onExecute() throws Exception;
     }
 
+    /**
+     * Job doing work identified by a key, e.g. the URL it fetches. Submitting a keyed job while a job with
+     * an equal key is queued or executing attaches to that job instead of queuing another one, the new
+     * job's onQueued() isn't called and it never executes.
+     */
+    public interface KeyedJob<T> extends Job<T> {
+        Object getJobKey();
+    }
+
+    /**
+     * Job that can run together with other queued jobs of the same batch key. Submitted batch jobs are
+     * collected until getMaximumBatchSize() of them are waiting or getMaximumBatchDelayMillis() passed
+     * since the first one, then the batch is queued as a single job with the highest priority of its
+     * members. A batch runs through onExecuteBatch() of its first job, a batch of a single job through
+     * its onExecute().
+     *
+     * Batch jobs are canceled through their handle or promise until the batch starts executing, they
+     * don't take part in key coalescing, groups or cancelAll().
+     */
+    public interface BatchJob<T> extends Job<T> {
+        Object getBatchKey();
+
+        int getMaximumBatchSize();
+
+        long getMaximumBatchDelayMillis();
+
+        /**
+         * @return A result for every job of the batch, in the batch order
+         */
+        List<T> onExecuteBatch(List<BatchJob<T>> batch) throws Exception;
+    }
+
+    /**
+     * Named queues sharing one pool of worker threads: each queue runs up to its own policy's number of
+     * concurrent jobs, all of them together never use more than the manager's threads, and threads left
+     * idle by one queue serve the others.
+     */
     public static class Manager {
         private static final Manager instance = new Manager();
-        private Map<String, JobQueue> queues = new HashMap<>();
+        private final Map<String, JobQueue<?>> queues = new HashMap<>();
+        private final int maximumNumberOfThreads;
+        private final ExecutorService pool;
+
+        public static Manager defaultManager(){
+            return instance;
+        }
 
+        /**
+         * Creates a manager with a thread per available processor.
+         */
+        public Manager(){
+            this(Runtime.getRuntime().availableProcessors());
+        }
 
-        public void registerQueue(String name, Policy policy){
+        public Manager(int maximumNumberOfThreads){
+            if ( maximumNumberOfThreads <= 0 ) {
+                throw new IllegalArgumentException("maximumNumberOfThreads must be positive");
+            }
+            this.maximumNumberOfThreads = maximumNumberOfThreads;
+            this.pool = createWorkerPool("JobQueue.Manager-" + managerCount.incrementAndGet() + "-", maximumNumberOfThreads);
+        }
 
+        public int getMaximumNumberOfThreads(){
+            return maximumNumberOfThreads;
         }
 
-        public <T> JobQueue<T> getQueue(String name){
-            return null;
+        /**
+         * Registers and starts a queue running on the manager's threads.
+         * @throws IllegalStateException If a queue with that name is already registered
+         */
+        public synchronized void registerQueue(String name, Policy policy){
+            if ( queues.containsKey(name) ) {
+                throw new IllegalStateException("Queue " + name + " is already registered");
+            }
+            JobQueue<?> queue = new JobQueue<>(policy, pool);
+            queues.put(name, queue);
+            queue.start();
         }
 
+        @SuppressWarnings("unchecked")
+        public synchronized <T> JobQueue<T> getQueue(String name){
+            return (JobQueue<T>)queues.get(name);
+        }
+
+        /**
+         * Stops every registered queue and releases the manager's threads once their jobs finished.
+         * @return Promise resolved once no job is executing on any of the queues
+         */
+        public synchronized Promise<List<Void>> shutdown(){
+            List<Promise<Void>> stopped = new LinkedList<>();
+            for ( JobQueue<?> queue: queues.values() ) {
+                stopped.add(queue.stop());
+            }
+            return Promise.all(stopped).then(new Runnable() {
+                @Override
+                public void run() {
+                    pool.shutdown();
+                }
+            });
+        }
     }
 
-    private class QueuedJob<T> {
+    private static class QueuedJob<T> implements Handle<T> {
+        private final JobQueue<T> queue;
         private final Job<T> job;
         private final Promise.Defer<T> defer = Promise.defer();
+        private final long sequence;
+        private final long queuedAt;
+        private final long queuedAtNanos = System.nanoTime();
+        private final Object tag;
+        private final Object key;
+        private final long deadline;
+        private HashedWheelTimer.Timeout expiry;
+        private QueuedJob<T> nextCopy;
+        private int attached;
+        private int priority;
+        private long rank;
+        private int index = -1;
+        private boolean canceled;
+
+        QueuedJob(JobQueue<T> queue, Job<T> job, int priority, Object tag, long sequence){
+            this(queue, job, priority, tag, NO_DEADLINE, sequence);
+        }
 
-        QueuedJob(Job<T> job){
+        QueuedJob(JobQueue<T> queue, Job<T> job, int priority, Object tag, long deadlineMillis, long sequence){
+            this.queue = queue;
             this.job = job;
+            this.tag = tag;
+            this.key = job instanceof KeyedJob ? ((KeyedJob<T>)job).getJobKey() : null;
+            this.sequence = sequence;
+            this.queuedAt = queue.now();
+            this.deadline = deadlineMillis > 0 ? queuedAt + deadlineMillis : Long.MAX_VALUE;
+            rank(priority);
             job.onQueued();
         }
 
-        Promise<T> getPromise(){
+        boolean hasDeadline(){
+            return deadline != Long.MAX_VALUE;
+        }
+
+        boolean isWaiting(){
+            return index >= 0 && !canceled;
+        }
+
+        /**
+         * With aging, a job waiting one aging interval ranks like a job a priority level higher submitted
+         * when it was: comparing priority * interval - queuedAt orders jobs by their aged priority without
+         * ever updating waiting jobs.
+         */
+        private void rank(int priority){
+            int interval = queue.policy.agingIntervalMillis;
+            this.priority = priority;
+            this.rank = interval > 0 ? (long)priority * interval - queuedAt : priority;
+        }
+
+        boolean runsBefore(QueuedJob<T> other){
+            if ( queue.policy.earliestDeadlineFirst && deadline != other.deadline ) return deadline < other.deadline;
+            if ( rank != other.rank ) return rank > other.rank;
+            return sequence < other.sequence;
+        }
+
+        @Override
+        public Promise<T> getPromise(){
             return defer.promise;
         }
 
-        boolean cancel(){
-            job.onCanceled();
+        @Override
+        public int getPriority(){
+            synchronized ( queue ) {
+                return priority;
+            }
+        }
+
+        @Override
+        public boolean setPriority(int priority){
+            synchronized ( queue ) {
+                if ( !isWaiting() ) return false;
+                rank(priority);
+                queue.jobs.update(this);
+                return true;
+            }
+        }
+
+        @Override
+        public Job<T> getJob(){
+            return job;
+        }
+
+        @Override
+        public Object getTag(){
+            return tag;
+        }
+
+        @Override
+        public boolean cancel(){
+            synchronized ( queue ) {
+                if ( !queue.dequeue(this) ) return false;
+            }
+            canceled();
             return true;
         }
 
+        /**
+         * Notifies a job removed from the queue by a cancellation, outside of the queue lock.
+         */
+        void canceled(){
+            queue.canceledJobs.incrementAndGet();
+            job.onCanceled();
+            defer.promise.cancel();
+        }
+
+        /**
+         * Drops a job whose deadline passed before it could start, outside of the queue lock.
+         */
+        void expired(){
+            queue.expiredDeadlines.incrementAndGet();
+            job.onCanceled();
+            defer.rejectWithException(new TimeoutException("Job deadline passed before it started"));
+        }
+
         boolean execute(){
+            if ( hasDeadline() && queue.now() >= deadline ) {
+                if ( key != null ) {
+                    queue.finished(this);
+                }
+                expired();
+                return true;
+            }
+            T result = null;
+            Exception exception = null;
+            Throwable thrown = null;
+            // A batch records the metrics of each of its members instead
+            boolean measured = !(job instanceof Batch);
+            long startedAt = System.nanoTime();
+            if ( measured ) {
+                queue.waitTime.record(startedAt - queuedAtNanos);
+                queue.executingJobs.incrementAndGet();
+            }
+            boolean completed = false;
             try {
-                defer.resolveWithResult(job.onExecute());
+                result = job.onExecute();
+                completed = true;
             } catch ( Exception e ) {
-                defer.rejectWithException(e);
+                exception = e;
+            } catch ( Throwable e ) {
+                exception = new ExecutionException(e);
+                thrown = e;
+            } finally {
+                if ( measured ) {
+                    queue.runTime.record(System.nanoTime() - startedAt);
+                    queue.executingJobs.decrementAndGet();
+                    (completed ? queue.completedJobs : queue.failedJobs).incrementAndGet();
+                }
+                if ( hasDeadline() && queue.now() > deadline ) {
+                    queue.missedDeadlines.incrementAndGet();
+                }
+                if ( key != null ) {
+                    queue.finished(this);
+                }
+            }
+            if ( exception == null ) {
+                defer.resolveWithResult(result);
+            }
+            else {
+                defer.rejectWithException(exception);
+            }
+            if ( thrown instanceof Error ) {
+                throw (Error)thrown;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Handle of a keyed submission: every submitter gets its own promise following the job's, canceling
+     * it only cancels the job once no other submitter still waits for it. Submitters are counted under
+     * the queue lock rather than as dependents of the job's promise, so a submitter canceling while the
+     * job starts can never cancel the job's own promise.
+     */
+    private static class AttachedHandle<T> implements Handle<T> {
+        private final QueuedJob<T> queuedJob;
+        private final Promise.Defer<T> defer = Promise.defer();
+
+        AttachedHandle(QueuedJob<T> queuedJob){
+            this.queuedJob = queuedJob;
+            synchronized ( queuedJob.queue ) {
+                queuedJob.attached++;
+            }
+            queuedJob.defer.promise.observe(new Promise.Handler<T>() {
+                @Override
+                public void trigger(Promise.Triggered<T> p) throws Exception {
+                    p.trigger(defer);
+                }
+            });
+            defer.onCancel(new Runnable() {
+                @Override
+                public void run() {
+                    detach();
+                }
+            });
+        }
+
+        private void detach(){
+            boolean last;
+            synchronized ( queuedJob.queue ) {
+                last = --queuedJob.attached == 0 && queuedJob.queue.dequeue(queuedJob);
+            }
+            if ( last ) {
+                queuedJob.canceled();
+            }
+        }
+
+        @Override
+        public Promise<T> getPromise(){
+            return defer.promise;
+        }
+
+        @Override
+        public int getPriority(){
+            return queuedJob.getPriority();
+        }
+
+        @Override
+        public boolean setPriority(int priority){
+            return queuedJob.setPriority(priority);
+        }
+
+        @Override
+        public Job<T> getJob(){
+            return queuedJob.job;
+        }
+
+        @Override
+        public Object getTag(){
+            return queuedJob.tag;
+        }
+
+        @Override
+        public boolean cancel(){
+            synchronized ( queuedJob.queue ) {
+                if ( !queuedJob.isWaiting() ) return false;
+            }
+            return defer.promise.cancel();
+        }
+    }
+
+    /**
+     * Batch jobs collected for a batch key, queued as a single job once sealed.
+     */
+    private static class Batch<T> implements Job<T> {
+        private final JobQueue<T> queue;
+        private final Object key;
+        private final int maximumSize;
+        private final List<BatchMember<T>> members = new ArrayList<>();
+        private HashedWheelTimer.Timeout timeout;
+        private QueuedJob<T> queuedJob;
+        private boolean started;
+
+        Batch(JobQueue<T> queue, BatchJob<T> first){
+            this.queue = queue;
+            this.key = first.getBatchKey();
+            this.maximumSize = Math.max(1, first.getMaximumBatchSize());
+        }
+
+        boolean isFull(){
+            return members.size() >= maximumSize;
+        }
+
+        int priority(){
+            int priority = Integer.MIN_VALUE;
+            for ( BatchMember<T> member: members ) {
+                priority = Math.max(priority, member.priority);
+            }
+            return priority;
+        }
+
+        @Override
+        public void onQueued() {
+        }
+
+        @Override
+        public void onCanceled() {
+        }
+
+        @Override
+        public T onExecute() throws Exception {
+            List<BatchMember<T>> batch;
+            synchronized ( queue ) {
+                started = true;
+                batch = new ArrayList<>(members);
+            }
+            if ( batch.isEmpty() ) return null;
+            long startedAt = System.nanoTime();
+            for ( BatchMember<T> member: batch ) {
+                queue.waitTime.record(startedAt - member.queuedAtNanos);
+            }
+            queue.executingJobs.addAndGet(batch.size());
+            boolean completed = false;
+            try {
+                if ( batch.size() == 1 ) {
+                    T result = batch.get(0).job.onExecute();
+                    completed = true;
+                    batch.get(0).defer.resolveWithResult(result);
+                    return null;
+                }
+                List<BatchJob<T>> jobs = new ArrayList<>(batch.size());
+                for ( BatchMember<T> member: batch ) {
+                    jobs.add(member.job);
+                }
+                List<T> results = batch.get(0).job.onExecuteBatch(jobs);
+                if ( results == null || results.size() != batch.size() ) {
+                    throw new IllegalStateException("Batch of " + batch.size() + " jobs returned "
+                            + (results == null ? "no" : Integer.toString(results.size())) + " results");
+                }
+                completed = true;
+                for ( int i = 0; i < batch.size(); i++ ) {
+                    batch.get(i).defer.resolveWithResult(results.get(i));
+                }
+            } catch ( Throwable e ) {
+                Exception exception = e instanceof Exception ? (Exception)e : new ExecutionException(e);
+                for ( BatchMember<T> member: batch ) {
+                    member.defer.rejectWithException(exception);
+                }
+                throw e;
+            } finally {
+                long runTime = System.nanoTime() - startedAt;
+                for ( int i = 0; i < batch.size(); i++ ) {
+                    queue.runTime.record(runTime);
+                }
+                queue.executingJobs.addAndGet(-batch.size());
+                (completed ? queue.completedJobs : queue.failedJobs).addAndGet(batch.size());
+            }
+            return null;
+        }
+    }
+
+    private static class BatchMember<T> implements Handle<T> {
+        private final Batch<T> batch;
+        private final BatchJob<T> job;
+        private final Promise.Defer<T> defer = Promise.defer();
+        private final long queuedAtNanos = System.nanoTime();
+        private int priority;
+
+        BatchMember(Batch<T> batch, BatchJob<T> job, int priority){
+            this.batch = batch;
+            this.job = job;
+            this.priority = priority;
+        }
+
+        @Override
+        public Promise<T> getPromise(){
+            return defer.promise;
+        }
+
+        @Override
+        public int getPriority(){
+            synchronized ( batch.queue ) {
+                return priority;
+            }
+        }
+
+        @Override
+        public boolean setPriority(int priority){
+            synchronized ( batch.queue ) {
+                if ( batch.started || !batch.members.contains(this) ) return false;
+                this.priority = priority;
+                if ( batch.queuedJob != null && priority > batch.queuedJob.priority ) {
+                    batch.queuedJob.setPriority(priority);
+                }
+                return true;
+            }
+        }
+
+        @Override
+        public Job<T> getJob(){
+            return job;
+        }
+
+        @Override
+        public Object getTag(){
+            return null;
+        }
+
+        @Override
+        public boolean cancel(){
+            synchronized ( batch.queue ) {
+                if ( batch.started || !batch.members.remove(this) ) return false;
+                if ( batch.members.isEmpty() ) {
+                    batch.queue.discard(batch);
+                }
             }
+            batch.queue.canceledJobs.incrementAndGet();
+            job.onCanceled();
+            defer.promise.cancel();
             return true;
         }
     }
 
-    private LinkedList<QueuedJob<T>> jobs = new LinkedList<>();
+    /**
+     * Binary heap of the waiting jobs, each job tracks its index so it can be moved in O(log n).
+     * Canceled jobs are only marked and skipped once they reach the top, the heap is rebuilt
+     * without them when they outnumber the waiting jobs.
+     */
+    private static class JobHeap<T> {
+        private final static int MINIMUM_COMPACTION = 64;
+
+        private QueuedJob<T>[] heap = newArray(16);
+        private int size;
+        private int canceled;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static <T> QueuedJob<T>[] newArray(int length){
+            return new QueuedJob[length];
+        }
+
+        /**
+         * @return Number of waiting jobs, not counting canceled ones
+         */
+        int size(){
+            return size - canceled;
+        }
+
+        boolean isEmpty(){
+            return size() == 0;
+        }
+
+        void add(QueuedJob<T> job){
+            if ( size == heap.length ) {
+                QueuedJob<T>[] grown = newArray(size * 2);
+                System.arraycopy(heap, 0, grown, 0, size);
+                heap = grown;
+            }
+            job.index = size++;
+            heap[job.index] = job;
+            siftUp(job.index);
+        }
+
+        QueuedJob<T> poll(){
+            while ( size > 0 ) {
+                QueuedJob<T> first = heap[0];
+                removeTop();
+                if ( !first.canceled ) return first;
+                canceled--;
+            }
+            return null;
+        }
+
+        List<QueuedJob<T>> waiting(){
+            List<QueuedJob<T>> waiting = new ArrayList<>(size());
+            for ( int i = 0; i < size; i++ ) {
+                if ( !heap[i].canceled ) waiting.add(heap[i]);
+            }
+            return waiting;
+        }
+
+        void cancel(QueuedJob<T> job){
+            job.canceled = true;
+            if ( ++canceled > MINIMUM_COMPACTION && canceled > size - canceled ) {
+                compact();
+            }
+        }
+
+        void update(QueuedJob<T> job){
+            siftUp(job.index);
+            siftDown(job.index);
+        }
+
+        private void removeTop(){
+            QueuedJob<T> first = heap[0];
+            QueuedJob<T> last = heap[--size];
+            heap[size] = null;
+            first.index = -1;
+            if ( last != first ) {
+                place(last, 0);
+                siftDown(0);
+            }
+        }
+
+        private void compact(){
+            int waiting = 0;
+            for ( int i = 0; i < size; i++ ) {
+                QueuedJob<T> job = heap[i];
+                if ( job.canceled ) {
+                    job.index = -1;
+                }
+                else {
+                    place(job, waiting++);
+                }
+            }
+            for ( int i = waiting; i < size; i++ ) {
+                heap[i] = null;
+            }
+            size = waiting;
+            canceled = 0;
+            for ( int i = (size >>> 1) - 1; i >= 0; i-- ) {
+                siftDown(i);
+            }
+        }
+
+        private void siftUp(int index){
+            QueuedJob<T> job = heap[index];
+            while ( index > 0 ) {
+                int parent = (index - 1) >>> 1;
+                if ( !job.runsBefore(heap[parent]) ) break;
+                place(heap[parent], index);
+                index = parent;
+            }
+            place(job, index);
+        }
+
+        private void siftDown(int index){
+            QueuedJob<T> job = heap[index];
+            while ( true ) {
+                int child = 2 * index + 1;
+                if ( child >= size ) break;
+                if ( child + 1 < size && heap[child + 1].runsBefore(heap[child]) ) child++;
+                if ( !heap[child].runsBefore(job) ) break;
+                place(heap[child], index);
+                index = child;
+            }
+            place(job, index);
+        }
+
+        private void place(QueuedJob<T> job, int index){
+            heap[index] = job;
+            job.index = index;
+        }
+    }
+
+    private final static int STOPPED = 0;
+    private final static int RUNNING = 1;
+    private final static int DRAINING = 2;
+
+    private final static long WORKER_KEEP_ALIVE_SECONDS = 30;
+    private final static AtomicInteger queueCount = new AtomicInteger();
+    private final static AtomicInteger managerCount = new AtomicInteger();
+
+    private final JobHeap<T> jobs = new JobHeap<>();
+    private final Map<Job<T>, QueuedJob<T>> jobIndex = new IdentityHashMap<>();
+    private final Map<Object, Set<QueuedJob<T>>> groups = new HashMap<>();
+    private final Map<Object, QueuedJob<T>> keyedJobs = new HashMap<>();
+    private final Map<Object, Batch<T>> batches = new HashMap<>();
+    private final long createdAt = System.nanoTime();
+    private final AtomicLong missedDeadlines = new AtomicLong();
+    private final AtomicLong expiredDeadlines = new AtomicLong();
+    private final AtomicLong submittedJobs = new AtomicLong();
+    private final AtomicLong completedJobs = new AtomicLong();
+    private final AtomicLong failedJobs = new AtomicLong();
+    private final AtomicLong canceledJobs = new AtomicLong();
+    private final AtomicInteger executingJobs = new AtomicInteger();
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+    private final LatencyHistogram runTime = new LatencyHistogram();
+    private long sequence;
+    private final Policy policy;
+    private final Executor executor;
+    private final boolean ownsExecutor;
+    private final Runnable worker = new Runnable() {
+        @Override
+        public void run() {
+            work();
+        }
+    };
+
+    private int state = STOPPED;
+    private int activeWorkers;
+    private List<Promise.Defer<Void>> idleWaiters = new LinkedList<>();
+    private MetricsListener metricsListener;
+    private HashedWheelTimer.Timeout metricsReport;
 
     public JobQueue(){
+        this(new Policy(1));
     }
 
-    public synchronized Promise<T> submit(Job<T> job){
-        QueuedJob<T> queuedJob = new QueuedJob<>(job);
-        jobs.add(queuedJob);
-        return queuedJob.getPromise();
+    /**
+     * Creates a queue running its jobs on up to policy.maximumNumberOfConcurrentJobs worker threads of
+     * its own once started, idle workers exit after a while.
+     */
+    public JobQueue(Policy policy){
+        this(policy, createWorkerPool("JobQueue-" + queueCount.incrementAndGet() + "-", policy.maximumNumberOfConcurrentJobs), true);
     }
 
-    public synchronized boolean cancel(Job<T> job) {
-        if ( job != null ) {
-            Iterator<QueuedJob<T>> iterator = jobs.iterator();
-            while (iterator.hasNext()) {
-                QueuedJob<T> queuedJob = iterator.next();
-                if (queuedJob.job == job) {
-                    if ( queuedJob.cancel() ) {
-                        iterator.remove();
-                        return true;
+    /**
+     * Creates a queue running its jobs on the given executor, with at most
+     * policy.maximumNumberOfConcurrentJobs of them submitted to it at any time.
+     */
+    public JobQueue(Policy policy, Executor executor){
+        this(policy, executor, false);
+    }
+
+    private JobQueue(Policy policy, Executor executor, boolean ownsExecutor){
+        this.policy = policy;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    private static ExecutorService createWorkerPool(final String name, int threads){
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public Promise<T> submit(Job<T> job){
+        return submit(job, DEFAULT_PRIORITY).getPromise();
+    }
+
+    public Handle<T> submit(Job<T> job, int priority){
+        return submit(job, priority, null);
+    }
+
+    /**
+     * Submits a job belonging to the group identified by tag, see cancelGroup().
+     */
+    public Handle<T> submit(Job<T> job, int priority, Object tag){
+        return submit(job, priority, tag, NO_DEADLINE);
+    }
+
+    /**
+     * Submits a job that has to start within deadlineMillis. A job still waiting at its deadline is
+     * dropped: onCanceled() is called and its promise is rejected with a TimeoutException, see
+     * getExpiredDeadlines(). A job finishing after its deadline still resolves its promise and is counted
+     * by getMissedDeadlines(). With an earliest deadline first Policy jobs run in the order of their
+     * deadlines.
+     *
+     * A keyed job attaching to a queued one keeps the deadline of the queued job, batch jobs don't have
+     * deadlines.
+     * @param deadlineMillis Time from now, NO_DEADLINE for none
+     */
+    public Handle<T> submit(Job<T> job, int priority, Object tag, long deadlineMillis){
+        submittedJobs.incrementAndGet();
+        if ( job instanceof BatchJob ) {
+            return submitToBatch((BatchJob<T>)job, priority);
+        }
+        final QueuedJob<T> queuedJob;
+        synchronized ( this ) {
+            if ( job instanceof KeyedJob ) {
+                QueuedJob<T> existing = keyedJobs.get(((KeyedJob<T>)job).getJobKey());
+                if ( existing != null ) {
+                    if ( priority > existing.priority ) {
+                        existing.setPriority(priority);
                     }
-                    return false;
+                    return new AttachedHandle<>(existing);
                 }
             }
+            queuedJob = new QueuedJob<>(this, job, priority, tag, deadlineMillis, sequence++);
+            jobs.add(queuedJob);
+            if ( queuedJob.hasDeadline() ) {
+                queuedJob.expiry = HashedWheelTimer.shared().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        expire(queuedJob);
+                    }
+                }, deadlineMillis, TimeUnit.MILLISECONDS);
+            }
+            if ( queuedJob.key != null ) {
+                keyedJobs.put(queuedJob.key, queuedJob);
+            }
+            index(queuedJob);
+            if ( tag != null ) {
+                Set<QueuedJob<T>> group = groups.get(tag);
+                if ( group == null ) {
+                    group = new HashSet<>();
+                    groups.put(tag, group);
+                }
+                group.add(queuedJob);
+            }
+            scheduleWorkers();
+        }
+        queuedJob.defer.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                queuedJob.cancel();
+            }
+        });
+        return queuedJob.key != null ? new AttachedHandle<>(queuedJob) : queuedJob;
+    }
+
+    private Handle<T> submitToBatch(BatchJob<T> job, int priority){
+        final BatchMember<T> member;
+        synchronized ( this ) {
+            Batch<T> batch = batches.get(job.getBatchKey());
+            if ( batch == null ) {
+                batch = new Batch<>(this, job);
+                batches.put(batch.key, batch);
+                long delay = job.getMaximumBatchDelayMillis();
+                if ( delay > 0 ) {
+                    final Batch<T> collecting = batch;
+                    batch.timeout = HashedWheelTimer.shared().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized ( JobQueue.this ) {
+                                seal(collecting);
+                            }
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                }
+            }
+            member = new BatchMember<>(batch, job, priority);
+            batch.members.add(member);
+            job.onQueued();
+            if ( batch.isFull() || batch.timeout == null ) {
+                seal(batch);
+            }
         }
-        return false;
+        member.defer.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                member.cancel();
+            }
+        });
+        return member;
+    }
+
+    /**
+     * Stops collecting jobs for the batch and queues it.
+     */
+    private void seal(Batch<T> batch){
+        if ( batch.queuedJob != null || batch.members.isEmpty() ) return;
+        if ( batches.get(batch.key) == batch ) {
+            batches.remove(batch.key);
+        }
+        if ( batch.timeout != null ) {
+            batch.timeout.cancel();
+        }
+        batch.queuedJob = new QueuedJob<>(this, batch, batch.priority(), null, sequence++);
+        jobs.add(batch.queuedJob);
+        scheduleWorkers();
+    }
+
+    /**
+     * Drops a batch left without members, whether it's still collecting or already queued.
+     */
+    private void discard(Batch<T> batch){
+        if ( batch.queuedJob != null ) {
+            dequeue(batch.queuedJob);
+            return;
+        }
+        if ( batches.get(batch.key) == batch ) {
+            batches.remove(batch.key);
+        }
+        if ( batch.timeout != null ) {
+            batch.timeout.cancel();
+        }
+    }
+
+    private synchronized void finished(QueuedJob<T> job){
+        if ( keyedJobs.get(job.key) == job ) {
+            keyedJobs.remove(job.key);
+        }
+    }
+
+    private void expire(QueuedJob<T> job){
+        synchronized ( this ) {
+            if ( !dequeue(job) ) return;
+        }
+        job.expired();
+    }
+
+    /**
+     * Removes a waiting job from the queue and its indexes.
+     * @return false if the job wasn't waiting anymore
+     */
+    private boolean dequeue(QueuedJob<T> job){
+        if ( !job.isWaiting() ) return false;
+        jobs.cancel(job);
+        unindex(job);
+        if ( job.key != null ) {
+            finished(job);
+        }
+        return true;
+    }
+
+    /**
+     * Indexes the job for cancel(Job), waiting submissions of the same job are chained in submission order.
+     */
+    private void index(QueuedJob<T> job){
+        QueuedJob<T> copy = jobIndex.get(job.job);
+        if ( copy == null ) {
+            jobIndex.put(job.job, job);
+            return;
+        }
+        while ( copy.nextCopy != null ) {
+            copy = copy.nextCopy;
+        }
+        copy.nextCopy = job;
+    }
+
+    private void unindex(QueuedJob<T> job){
+        if ( job.expiry != null ) {
+            job.expiry.cancel();
+        }
+        QueuedJob<T> copy = jobIndex.get(job.job);
+        if ( copy == job ) {
+            if ( job.nextCopy != null ) {
+                jobIndex.put(job.job, job.nextCopy);
+            }
+            else {
+                jobIndex.remove(job.job);
+            }
+        }
+        else if ( copy != null ) {
+            while ( copy.nextCopy != null && copy.nextCopy != job ) {
+                copy = copy.nextCopy;
+            }
+            if ( copy.nextCopy == job ) {
+                copy.nextCopy = job.nextCopy;
+            }
+        }
+        job.nextCopy = null;
+        if ( job.tag != null ) {
+            Set<QueuedJob<T>> group = groups.get(job.tag);
+            if ( group != null && group.remove(job) && group.isEmpty() ) {
+                groups.remove(job.tag);
+            }
+        }
+    }
+
+    private synchronized QueuedJob<T> poll(){
+        QueuedJob<T> job = jobs.poll();
+        if ( job != null ) {
+            unindex(job);
+        }
+        return job;
+    }
+
+    private long now(){
+        return (System.nanoTime() - createdAt) / 1000000;
+    }
+
+    /**
+     * Starts running queued and future jobs on the worker pool.
+     */
+    public synchronized void start(){
+        state = RUNNING;
+        scheduleWorkers();
+    }
+
+    /**
+     * Stops taking jobs off the queue, jobs already executing run to completion and the rest stay queued
+     * until the queue is started again.
+     * @return Promise resolved once no job is executing on the worker pool
+     */
+    public synchronized Promise<Void> stop(){
+        state = STOPPED;
+        return whenIdle();
+    }
+
+    /**
+     * Runs every queued job, including jobs submitted meanwhile, then stops the queue. Batches still
+     * collecting jobs are queued without waiting for their delay.
+     * @return Promise resolved once the queue is empty and no job is executing on the worker pool
+     */
+    public synchronized Promise<Void> drain(){
+        state = DRAINING;
+        for ( Batch<T> batch: new ArrayList<>(batches.values()) ) {
+            seal(batch);
+        }
+        scheduleWorkers();
+        return whenIdle();
+    }
+
+    public synchronized boolean isRunning(){
+        return state != STOPPED;
+    }
+
+    /**
+     * Stops the queue and releases the worker threads the queue created, jobs left in the queue can still
+     * be run with next().
+     */
+    public Promise<Void> shutdown(){
+        Promise<Void> stopped = stop();
+        if ( ownsExecutor ) {
+            ((ExecutorService)executor).shutdown();
+        }
+        return stopped;
+    }
+
+    private Promise<Void> whenIdle(){
+        Promise.Defer<Void> defer = Promise.defer();
+        if ( activeWorkers == 0 ) {
+            if ( state == DRAINING ) state = STOPPED;
+            defer.resolveWithResult(null);
+        }
+        else {
+            idleWaiters.add(defer);
+        }
+        return defer.promise;
+    }
+
+    private void scheduleWorkers(){
+        while ( state != STOPPED && activeWorkers < policy.maximumNumberOfConcurrentJobs && activeWorkers < jobs.size() ) {
+            activeWorkers++;
+            try {
+                executor.execute(worker);
+            } catch ( RejectedExecutionException e ) {
+                activeWorkers--;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs a single job and resubmits the worker for the next one, so queues sharing an executor
+     * take turns on its threads instead of holding on to them while they have work.
+     */
+    private void work(){
+        QueuedJob<T> job;
+        synchronized ( this ) {
+            job = state != STOPPED ? poll() : null;
+        }
+        if ( job == null ) {
+            releaseWorker();
+            return;
+        }
+        try {
+            job.execute();
+        } finally {
+            try {
+                executor.execute(worker);
+            } catch ( RejectedExecutionException e ) {
+                releaseWorker();
+            }
+        }
+    }
+
+    private void releaseWorker(){
+        List<Promise.Defer<Void>> idle = null;
+        synchronized ( this ) {
+            if ( --activeWorkers == 0 ) {
+                if ( state == DRAINING ) state = STOPPED;
+                idle = idleWaiters;
+                idleWaiters = new LinkedList<>();
+            }
+            else {
+                return;
+            }
+        }
+        for ( Promise.Defer<Void> defer: idle ) {
+            defer.resolveWithResult(null);
+        }
+    }
+
+    /**
+     * Cancels the first waiting submission of the job, see Handle.cancel().
+     */
+    public boolean cancel(Job<T> job) {
+        QueuedJob<T> queuedJob;
+        synchronized ( this ) {
+            queuedJob = jobIndex.get(job);
+        }
+        return queuedJob != null && queuedJob.cancel();
+    }
+
+    /**
+     * Cancels every waiting job submitted with the tag.
+     * @return Number of jobs canceled
+     */
+    public int cancelGroup(Object tag){
+        List<QueuedJob<T>> canceled = new LinkedList<>();
+        synchronized ( this ) {
+            Set<QueuedJob<T>> group = groups.get(tag);
+            if ( group != null ) {
+                for ( QueuedJob<T> job: new ArrayList<>(group) ) {
+                    if ( dequeue(job) ) canceled.add(job);
+                }
+            }
+        }
+        return notifyCanceled(canceled);
+    }
+
+    /**
+     * Cancels every waiting job matched by the predicate, called with the queue locked.
+     * @return Number of jobs canceled
+     */
+    public int cancelAll(Predicate<T> predicate){
+        List<QueuedJob<T>> canceled = new LinkedList<>();
+        synchronized ( this ) {
+            for ( QueuedJob<T> job: jobs.waiting() ) {
+                if ( !(job.job instanceof Batch) && predicate.matches(job) && dequeue(job) ) {
+                    canceled.add(job);
+                }
+            }
+        }
+        return notifyCanceled(canceled);
+    }
+
+    private int notifyCanceled(List<QueuedJob<T>> canceled){
+        for ( QueuedJob<T> job: canceled ) {
+            job.canceled();
+        }
+        return canceled.size();
+    }
+
+    /**
+     * @return Number of jobs that finished after their deadline
+     */
+    public long getMissedDeadlines(){
+        return missedDeadlines.get();
+    }
+
+    /**
+     * @return Number of jobs dropped because their deadline passed before they started
+     */
+    public long getExpiredDeadlines(){
+        return expiredDeadlines.get();
+    }
+
+    public synchronized Metrics getMetrics(){
+        return new Metrics(this, jobs.size());
+    }
+
+    /**
+     * Pushes a snapshot of the queue's metrics to the listener every intervalMillis, replacing the previous
+     * listener. A null listener stops reporting.
+     */
+    public synchronized void setMetricsListener(MetricsListener listener, long intervalMillis){
+        if ( metricsReport != null ) {
+            metricsReport.cancel();
+            metricsReport = null;
+        }
+        metricsListener = listener;
+        if ( listener != null ) {
+            scheduleMetricsReport(listener, intervalMillis);
+        }
+    }
+
+    private void scheduleMetricsReport(final MetricsListener listener, final long intervalMillis){
+        metricsReport = HashedWheelTimer.shared().schedule(new Runnable() {
+            @Override
+            public void run() {
+                Metrics metrics;
+                synchronized ( JobQueue.this ) {
+                    if ( metricsListener != listener ) return;
+                    metrics = getMetrics();
+                    scheduleMetricsReport(listener, intervalMillis);
+                }
+                listener.onMetrics(JobQueue.this, metrics);
+            }
+        }, intervalMillis, TimeUnit.MILLISECONDS);
     }
 
     public boolean next(){
         QueuedJob<T> job = null;
         synchronized(this) {
-            if ( jobs.size() > 0 ) {
-                job = jobs.remove();
-            }
+            job = poll();
         }
         return job != null && job.execute();
     }
@@ -0,0 +1,121 @@
+package com.threeplay.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds. Buckets are log-linear: every power of two is split
+ * into 8 buckets, so a recorded value is known within 12.5% while the whole histogram takes a few KB.
+ * Durations above 2^42ns (about 73 minutes) land in the last bucket.
+ *
+ * Recording is a few atomic increments, reading takes a snapshot that's consistent enough for
+ * monitoring but may miss values recorded concurrently.
+ */
+public class LatencyHistogram {
+    private final static int SUB_BUCKET_BITS = 3;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private final static int MAXIMUM_EXPONENT = 42;
+    private final static int BUCKETS = SUB_BUCKETS + (MAXIMUM_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong maximum = new AtomicLong();
+
+    public void record(long nanos){
+        if ( nanos < 0 ) nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        total.addAndGet(nanos);
+        long max;
+        while ( nanos > (max = maximum.get()) && !maximum.compareAndSet(max, nanos) ) {
+        }
+    }
+
+    public Snapshot snapshot(){
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        return new Snapshot(snapshot, count, total.get(), maximum.get());
+    }
+
+    public void reset(){
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        maximum.set(0);
+    }
+
+    private static int bucket(long nanos){
+        if ( nanos < SUB_BUCKETS ) return (int)nanos;
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if ( exponent > MAXIMUM_EXPONENT ) return BUCKETS - 1;
+        int subBucket = (int)(nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return Largest value landing in the bucket
+     */
+    private static long highestValue(int bucket){
+        if ( bucket < SUB_BUCKETS ) return bucket;
+        if ( bucket == BUCKETS - 1 ) return Long.MAX_VALUE;
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long maximum;
+
+        Snapshot(long[] counts, long count, long total, long maximum){
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.maximum = maximum;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMean(TimeUnit unit) {
+            return count == 0 ? 0 : unit.convert(total / count, TimeUnit.NANOSECONDS);
+        }
+
+        public long getMaximum(TimeUnit unit) {
+            return unit.convert(maximum, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @param percentile Between 0 and 100
+         * @return Value at or below which the percentile of the recorded values fall, 0 if none were recorded
+         */
+        public long getPercentile(double percentile, TimeUnit unit) {
+            if ( count == 0 ) return 0;
+            long rank = Math.max(1, (long)Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * count));
+            long seen = 0;
+            for ( int i = 0; i < counts.length; i++ ) {
+                seen += counts[i];
+                if ( seen >= rank ) {
+                    return unit.convert(Math.min(highestValue(i), maximum), TimeUnit.NANOSECONDS);
+                }
+            }
+            return unit.convert(maximum, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%dus p50=%dus p99=%dus max=%dus", count, getMean(TimeUnit.MICROSECONDS),
+                    getPercentile(50, TimeUnit.MICROSECONDS), getPercentile(99, TimeUnit.MICROSECONDS),
+                    getMaximum(TimeUnit.MICROSECONDS));
+        }
+    }
+}
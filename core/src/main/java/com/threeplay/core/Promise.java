@@ -3,11 +3,18 @@ package com.threeplay.core;
 import java.io.PrintWriter;
 import java.lang.reflect.Array;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by eliranbe on 5/24/16.
@@ -16,16 +23,69 @@ public class Promise<T> {
     private final static int SUCCESS_HANDLER = 0;
     private final static int FAILURE_HANDLER = 1;
 
+    /**
+     * Marks the subscriber stack as drained once the promise was triggered, any subscriber
+     * arriving after that point is dispatched immediately by the subscribing thread.
+     */
+    private final static Subscriber<?> TRIGGERED = new Subscriber<>(null, null, null, null);
+
+    @SuppressWarnings("rawtypes")
+    private final static AtomicReferenceFieldUpdater<Promise, Subscriber> SUBSCRIBERS =
+            AtomicReferenceFieldUpdater.newUpdater(Promise.class, Subscriber.class, "subscribers");
+
+    private static volatile Executor defaultExecutor;
+    private static volatile PromiseTracer tracer;
+
+    @SuppressWarnings("rawtypes")
+    private final static AtomicReferenceFieldUpdater<Promise, Waiter> WAITERS =
+            AtomicReferenceFieldUpdater.newUpdater(Promise.class, Waiter.class, "waiters");
+
+    @SuppressWarnings("rawtypes")
+    private final static AtomicIntegerFieldUpdater<Promise> COMPLETING =
+            AtomicIntegerFieldUpdater.newUpdater(Promise.class, "completing");
+
+    @SuppressWarnings("rawtypes")
+    private final static AtomicIntegerFieldUpdater<Promise> DEPENDENTS =
+            AtomicIntegerFieldUpdater.newUpdater(Promise.class, "dependents");
+
     private volatile int triggered = -1;
-    private final Handler<T>[] handlers = new Handler[2];
-    private Promise<T> nextPromise;
-    private Promise<T> intermediatePromise;
+    private volatile int completing;
+    private volatile Subscriber<T> subscribers;
+    private volatile Waiter waiters;
 
-    private int forwardTrigger;
-    private T result, forwardResult;
-    private Exception exception, forwardException;
+    private volatile Promise<?> upstream;
+    private volatile int dependents;
+    private volatile boolean canceled;
+
+    private T result;
+    private Exception exception;
 
     private Promise() {
+        PromiseTracer tracer = Promise.tracer;
+        if ( tracer != null ) tracer.created(this);
+    }
+
+    /**
+     * Installs a tracer notified of every promise created from now on, null removes it.
+     */
+    public static void setTracer(PromiseTracer tracer) {
+        Promise.tracer = tracer;
+    }
+
+    public static PromiseTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Sets the executor used by the *On continuation variants when they are given a null executor.
+     * When no default executor is set these continuations run on the thread completing the promise.
+     */
+    public static void setDefaultExecutor(Executor executor) {
+        defaultExecutor = executor;
+    }
+
+    public static Executor getDefaultExecutor() {
+        return defaultExecutor;
     }
 
     public static <T> Defer<T> defer() {
@@ -37,7 +97,7 @@ public class Promise<T> {
     }
 
     public static<T, U> Promise<List<T>> fromList(List<U> list, ListDefer<U, T> deferBlock){
-        List<Promise<T>> promises = new LinkedList<>();
+        AllAggregate<T> aggregate = new AllAggregate<>(list.size());
         for (U entry: list) {
             Defer<T> defer = new Promise.Defer<>();
             try {
@@ -45,9 +105,19 @@ public class Promise<T> {
             } catch ( Exception e ) {
                 defer.rejectWithException(e);
             }
-            promises.add(defer.promise);
+            aggregate.add(defer.promise);
         }
-        return all(promises);
+        return aggregate.promise();
+    }
+
+    /**
+     * Like fromList, but keeps at most concurrency entries in flight: the next entry is started as an
+     * earlier one completes. Results keep the list order, the first failure rejects the promise and
+     * stops starting new entries. Canceling the promise cancels the entries in flight.
+     */
+    public static<T, U> Promise<List<T>> mapConcurrent(List<U> list, int concurrency, ListDefer<U, T> deferBlock){
+        if ( concurrency <= 0 ) throw new IllegalArgumentException("concurrency must be positive");
+        return new MapAggregate<>(list, concurrency, deferBlock).promise();
     }
 
     public static <T> Promise<T> withHandler(Handler<T> handler) {
@@ -71,61 +141,122 @@ public class Promise<T> {
     }
 
     public static <T> Promise<List<T>> collect(int count, CollectBlock<T> block){
-        List<Promise<T>> promises = new LinkedList<>();
+        AllAggregate<T> aggregate = new AllAggregate<>(count);
         for ( int i = 0; i < count; i++ ) {
-            promises.add(block.promiseOfIndex(i));
+            aggregate.add(block.promiseOfIndex(i));
         }
-        return Promise.all(promises);
+        return aggregate.promise();
     }
 
     public Promise<T> defer(final DeferBlock<T> deferBlock){
+        return addStage(new Stage<T, T>(null) {
+            @Override
+            void fire(Promise<T> source) throws Exception {
+                deferBlock.trigger(defer, new Triggered<>(source));
+            }
+        });
+    }
+
+    /**
+     * Returns a promise triggered like this one, or canceled with a TimeoutException if this promise
+     * isn't triggered within the given time. The time out cancels this promise as well unless other
+     * dependents are still waiting for it.
+     */
+    public Promise<T> timeout(long millis) {
         final Defer<T> defer = defer();
+        defer.promise.dependOn(this);
         this.any(new Handler<T>() {
             @Override
             public void trigger(Triggered<T> p) throws Exception {
-                try {
-                    deferBlock.trigger(defer, p);
-                } catch ( Exception e ) {
-                    defer.rejectWithException(e);
-                }
+                p.trigger(defer);
+            }
+        });
+        return defer.deadline(millis).promise;
+    }
+
+    /**
+     * Returns a promise resolved with null once the given time elapsed, on the shared timer thread.
+     */
+    public static Promise<Void> delay(long millis) {
+        final Defer<Void> defer = defer();
+        final HashedWheelTimer.Timeout timeout = HashedWheelTimer.shared().schedule(new Runnable() {
+            @Override
+            public void run() {
+                defer.resolveWithResult(null);
+            }
+        }, millis, TimeUnit.MILLISECONDS);
+        defer.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                timeout.cancel();
             }
         });
         return defer.promise;
     }
 
+    @SafeVarargs
     public static <T> Promise<List<T>> all(final Promise<T>... promises){
-        return all(Arrays.asList(promises));
+        AllAggregate<T> aggregate = new AllAggregate<T>(promises.length);
+        for ( Promise<T> promise: promises ) {
+            aggregate.add(promise);
+        }
+        return aggregate.promise();
     }
 
+    /**
+     * Resolves with the results of all promises in order, or rejects with the first rejection.
+     */
     public static <T> Promise<List<T>> all(final List<Promise<T>> promises){
-        final Defer<List<T>> defer = defer();
-        final T[] results = (T[])new Object[promises.size()];
-        int index = 0;
-        final AtomicInteger promises_resolved = new AtomicInteger(0);
-        final AtomicBoolean any_promise_rejected = new AtomicBoolean(false);
-        for(final Promise<T> promise: promises){
-            final int idx = index;
-            promise.then(new Handler<T>() {
-                @Override
-                public void trigger(Triggered<T> p) throws Exception {
-                    if (!any_promise_rejected.get()) {
-                        results[idx] = p.getResult();
-                        if (promises_resolved.addAndGet(1) == promises.size()) {
-                            defer.resolveWithResult(Arrays.asList(results));
-                        }
-                    }
-                }
-            }, new Handler<T>() {
-                @Override
-                public void trigger(Triggered<T> p) throws Exception {
-                    if (!any_promise_rejected.getAndSet(true)) {
-                        defer.rejectWithException(p.getException());
-                    }
-                }
-            });
-            ++index;
+        return new AllAggregate<T>(promises.size()).addAll(promises).promise();
+    }
+
+    @SafeVarargs
+    public static <T> Promise<List<Settled<T>>> allSettled(final Promise<T>... promises){
+        SettledAggregate<T> aggregate = new SettledAggregate<T>(promises.length);
+        for ( Promise<T> promise: promises ) {
+            aggregate.add(promise);
         }
-        return defer.promise;
+        return aggregate.promise();
+    }
+
+    /**
+     * Resolves once all promises were triggered with the outcome of each, in order. Never rejects.
+     */
+    public static <T> Promise<List<Settled<T>>> allSettled(final List<Promise<T>> promises){
+        return new SettledAggregate<T>(promises.size()).addAll(promises).promise();
+    }
+
+    @SafeVarargs
+    public static <T> Promise<T> race(final Promise<T>... promises){
+        RaceAggregate<T> aggregate = new RaceAggregate<T>(promises.length);
+        for ( Promise<T> promise: promises ) {
+            aggregate.add(promise);
+        }
+        return aggregate.promise();
+    }
+
+    /**
+     * Resolves or rejects like the first of the promises to be triggered.
+     */
+    public static <T> Promise<T> race(final List<Promise<T>> promises){
+        return new RaceAggregate<T>(promises.size()).addAll(promises).promise();
+    }
+
+    @SafeVarargs
+    public static <T> Promise<T> any(final Promise<T>... promises){
+        AnyAggregate<T> aggregate = new AnyAggregate<T>(promises.length);
+        for ( Promise<T> promise: promises ) {
+            aggregate.add(promise);
+        }
+        return aggregate.promise();
+    }
+
+    /**
+     * Resolves with the first successful result, or rejects with an AllFailedException holding every
+     * rejection in order when none of the promises succeeds.
+     */
+    public static <T> Promise<T> any(final List<Promise<T>> promises){
+        return new AnyAggregate<T>(promises.size()).addAll(promises).promise();
     }
 
     @SuppressWarnings("unchecked")
@@ -157,19 +288,35 @@ public class Promise<T> {
     }
 
     public Promise<T> then(Handler<T> thenHandler, Handler<T> failHandler){
-        return setHandlers(thenHandler, failHandler);
+        return setHandlers(null, thenHandler, failHandler);
     }
 
     public Promise<T> then(Handler<T> handler) {
-        return setHandlers(handler, null);
+        return setHandlers(null, handler, null);
     }
 
     public Promise<T> fail(Handler<T> handler) {
-        return setHandlers(null, handler);
+        return setHandlers(null, null, handler);
     }
 
     public Promise<T> any(Handler<T> handler) {
-        return setHandlers(handler, handler);
+        return setHandlers(null, handler, handler);
+    }
+
+    public Promise<T> thenOn(Executor executor, Handler<T> thenHandler, Handler<T> failHandler){
+        return setHandlers(executorOrDefault(executor), thenHandler, failHandler);
+    }
+
+    public Promise<T> thenOn(Executor executor, Handler<T> handler) {
+        return setHandlers(executorOrDefault(executor), handler, null);
+    }
+
+    public Promise<T> failOn(Executor executor, Handler<T> handler) {
+        return setHandlers(executorOrDefault(executor), null, handler);
+    }
+
+    public Promise<T> anyOn(Executor executor, Handler<T> handler) {
+        return setHandlers(executorOrDefault(executor), handler, handler);
     }
 
     public Promise<T> any(final Runnable runnable) {
@@ -211,77 +358,194 @@ public class Promise<T> {
         return defer.promise;
     }
 
+    /**
+     * Blocks until the promise is triggered, an interrupt while waiting is kept pending on the thread.
+     * @return Result of the promise
+     * @throws Exception The exception the promise was rejected with
+     */
     public T join() throws Exception {
-        final AtomicReference<Exception> exception = new AtomicReference<>(null);
-        final AtomicReference<T> result = new AtomicReference<>(null);
-        final AtomicBoolean completed = new AtomicBoolean(false);
-        any(new Handler<T>() {
-            @Override
-            public void trigger(Triggered<T> p) throws Exception {
-                result.set(p.getResult());
-                exception.set(p.getException());
-                completed.set(true);
+        await(false, false, 0);
+        return joinedResult();
+    }
+
+    /**
+     * Blocks until the promise is triggered or the waiting thread is interrupted.
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public T joinInterruptibly() throws Exception {
+        await(true, false, 0);
+        return joinedResult();
+    }
+
+    /**
+     * Blocks until the promise is triggered, the timeout elapses or the waiting thread is interrupted.
+     * @throws TimeoutException If the promise wasn't triggered within the timeout
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public T join(long timeout, TimeUnit unit) throws Exception {
+        if ( !await(true, true, unit.toNanos(timeout)) ) {
+            throw new TimeoutException();
+        }
+        return joinedResult();
+    }
+
+    private T joinedResult() throws Exception {
+        if ( exception != null ) {
+            throw exception;
+        }
+        return result;
+    }
+
+    private boolean await(boolean interruptible, boolean timed, long nanos) throws InterruptedException {
+        if ( triggered != -1 ) return true;
+        long deadline = timed ? System.nanoTime() + nanos : 0;
+        Waiter waiter = null;
+        boolean queued = false;
+        boolean interrupted = false;
+        try {
+            while ( triggered == -1 ) {
+                if ( Trampoline.current().drain() ) continue;
+                if ( waiter == null ) {
+                    waiter = new Waiter(Thread.currentThread());
+                    continue;
+                }
+                if ( !queued ) {
+                    waiter.next = waiters;
+                    queued = WAITERS.compareAndSet(this, waiter.next, waiter);
+                    continue;
+                }
+                if ( timed ) {
+                    nanos = deadline - System.nanoTime();
+                    if ( nanos <= 0 ) return false;
+                    LockSupport.parkNanos(this, nanos);
+                }
+                else {
+                    LockSupport.park(this);
+                }
+                if ( Thread.interrupted() ) {
+                    if ( interruptible ) throw new InterruptedException();
+                    interrupted = true;
+                }
+            }
+            return true;
+        } finally {
+            if ( queued ) {
+                removeWaiter(waiter);
+            }
+            if ( interrupted ) {
+                Thread.currentThread().interrupt();
             }
-        });
-        while ( !completed.get() ) {
         }
-        if ( exception.get() != null ) {
-            throw exception.get();
+    }
+
+    /**
+     * Thread blocked in join(), kept on a stack of its own rather than as a subscriber so a join that
+     * times out can unlink itself instead of staying attached until the promise is triggered.
+     */
+    private static class Waiter {
+        volatile Thread thread;
+        volatile Waiter next;
+
+        Waiter(Thread thread){
+            this.thread = thread;
         }
-        return result.get();
     }
 
+    private void releaseWaiters() {
+        Waiter waiter = WAITERS.getAndSet(this, null);
+        while ( waiter != null ) {
+            Thread thread = waiter.thread;
+            if ( thread != null ) {
+                waiter.thread = null;
+                LockSupport.unpark(thread);
+            }
+            waiter = waiter.next;
+        }
+    }
 
+    /**
+     * Unlinks a waiter that stopped waiting along with any other departed waiter, restarting when
+     * racing another removal.
+     */
+    private void removeWaiter(Waiter waiter) {
+        waiter.thread = null;
+        retry:
+        while ( true ) {
+            Waiter previous = null;
+            for ( Waiter current = waiters, next; current != null; current = next ) {
+                next = current.next;
+                if ( current.thread != null ) {
+                    previous = current;
+                }
+                else if ( previous != null ) {
+                    previous.next = next;
+                    if ( previous.thread == null ) continue retry;
+                }
+                else if ( !WAITERS.compareAndSet(this, current, next) ) {
+                    continue retry;
+                }
+            }
+            return;
+        }
+    }
 
     public <U> Promise<U> then(final Promise<U> nextPromise){
         return nextPromise;
     }
 
     public <U>Promise<U> then(final Convert<T, U> convert){
-        final Defer<U> defer = new Defer<>();
-        then(new Handler<T>() {
-            @Override
-            public void trigger(Triggered<T> p) throws Exception {
-                convert.convert(defer, p.getResult());
-            }
-        }).fail(new Handler<T>() {
+        return convert(null, convert);
+    }
+
+    public <U>Promise<U> thenOn(Executor executor, final Convert<T, U> convert){
+        return convert(executorOrDefault(executor), convert);
+    }
+
+    private <U>Promise<U> convert(Executor executor, final Convert<T, U> convert){
+        return addStage(new Stage<T, U>(executor) {
             @Override
-            public void trigger(Triggered<T> p) throws Exception {
-                defer.rejectWithException(p.getException());
+            void fire(Promise<T> source) throws Exception {
+                if ( source.triggered == SUCCESS_HANDLER ) {
+                    convert.convert(defer, source.result);
+                }
+                else {
+                    defer.rejectWithException(source.exception);
+                }
             }
         });
-        return defer.promise;
     }
 
     public Promise<T> then(final PromiseRunnable<T> runnable){
-        return this.then(new Handler<T>() {
+        return addStage(new Stage<T, T>(null) {
             @Override
-            public void trigger(Triggered<T> p) throws Exception {
-                if ( p.wasSuccessful() ) {
-                    runnable.run(p.getResult());
+            void fire(Promise<T> source) throws Exception {
+                if ( source.triggered == SUCCESS_HANDLER ) {
+                    runnable.run(source.result);
                 }
+                defer.promise.trigger(source.triggered, source.result, source.exception);
             }
         });
     }
 
     public Promise<T> then(final Runnable runnable){
-        return this.then(new Handler<T>() {
+        return addStage(new Stage<T, T>(null) {
             @Override
-            public void trigger(Triggered<T> p) throws Exception {
-                runnable.run();
+            void fire(Promise<T> source) throws Exception {
+                if ( source.triggered == SUCCESS_HANDLER ) {
+                    runnable.run();
+                }
+                defer.promise.trigger(source.triggered, source.result, source.exception);
             }
         });
     }
 
     public <U>Promise<U> filter(final Filter<T, U> filter) {
-        final Defer<U> defer = defer();
-        any(new Handler<T>() {
+        return addStage(new Stage<T, U>(null) {
             @Override
-            public void trigger(Triggered<T> p) throws Exception {
-                filter.filter(defer, p.wasSuccessful(), p.getResult(), p.getException());
+            void fire(Promise<T> source) throws Exception {
+                filter.filter(defer, source.triggered == SUCCESS_HANDLER, source.result, source.exception);
             }
         });
-        return defer.promise;
     }
 
     public Promise<T> logException(final Logger logger){
@@ -296,72 +560,560 @@ public class Promise<T> {
         });
     }
 
-    private void forward(int triggerType, T result, Exception exception){
-        forwardTrigger = triggerType;
-        forwardResult = result;
-        forwardException = exception;
+    private static Executor executorOrDefault(Executor executor) {
+        return executor != null ? executor : defaultExecutor;
+    }
+
+    private <U> Promise<U> addStage(Stage<T, U> stage) {
+        stage.defer.promise.dependOn(this);
+        DEPENDENTS.incrementAndGet(this);
+        addSubscriber(stage);
+        return stage.defer.promise;
     }
 
-    private Promise<T> setHandlers(Handler<T> success, Handler<T> failure) {
-        if ( !allocateNextPromiseIfNeeded() ) return nextPromise.setHandlers(success, failure);
+    private Promise<T> setHandlers(Executor executor, Handler<T> success, Handler<T> failure) {
+        Subscriber<T> subscriber = new Subscriber<>(executor, success, failure, new Promise<T>());
+        subscriber.nextPromise.dependOn(this);
+        DEPENDENTS.incrementAndGet(this);
+        addSubscriber(subscriber);
+        return subscriber.nextPromise;
+    }
 
-        handlers[SUCCESS_HANDLER] = success;
-        handlers[FAILURE_HANDLER] = failure;
+    /**
+     * Subscribes a handler that doesn't count as a dependent, so it never keeps cancellation from
+     * propagating to this promise.
+     */
+    void observe(Handler<T> handler) {
+        addSubscriber(new Subscriber<>(null, handler, handler, new Promise<T>()));
+    }
 
-        triggerHandler();
-        return nextPromise;
+    /**
+     * Cancels the promise if it wasn't triggered yet: it is rejected with a CancellationException,
+     * handlers waiting on it to produce downstream promises are skipped, and the promise it depends on
+     * is canceled as well once none of that promise's other dependents is still waiting for it.
+     * Producers observe cancellation through Defer.isCanceled() and Defer.onCancel().
+     * @return true if the promise was canceled by this call
+     */
+    public boolean cancel() {
+        return cancel(new CancellationException());
     }
 
-    private synchronized boolean allocateNextPromiseIfNeeded(){
-        if ( nextPromise != null ) return false;
-        nextPromise = new Promise<>();
+    private boolean cancel(Exception reason) {
+        if ( !COMPLETING.compareAndSet(this, 0, 1) ) return false;
+        canceled = true;
+        complete(FAILURE_HANDLER, null, reason);
+        Promise<?> upstream = this.upstream;
+        if ( upstream != null ) {
+            this.upstream = null;
+            upstream.releaseDependent();
+        }
         return true;
     }
 
-    private synchronized void trigger(int handlerIndex, T result, Exception exception) {
-        this.result = this.forwardResult = result;
-        this.exception = this.forwardException = exception;
-        this.forwardTrigger = handlerIndex;
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    private void dependOn(Promise<?> upstream) {
+        this.upstream = upstream;
+        PromiseTracer tracer = Promise.tracer;
+        if ( tracer != null ) tracer.linked(this, upstream);
+    }
+
+    private void releaseDependent() {
+        if ( DEPENDENTS.decrementAndGet(this) <= 0 ) {
+            cancel();
+        }
+    }
+
+    private void addSubscriber(Subscriber<T> subscriber) {
+        if ( !subscribe(subscriber) ) {
+            subscriber.source = this;
+            Trampoline.current().dispatch(subscriber, subscriber);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean subscribe(Subscriber<T> subscriber) {
+        while ( true ) {
+            Subscriber<T> head = subscribers;
+            if ( head == TRIGGERED ) {
+                subscriber.next = null;
+                return false;
+            }
+            subscriber.next = head;
+            if ( SUBSCRIBERS.compareAndSet(this, head, subscriber) ) return true;
+        }
+    }
+
+    private boolean trigger(int handlerIndex, T result, Exception exception) {
+        if ( !COMPLETING.compareAndSet(this, 0, 1) ) return false;
+        upstream = null;
+        complete(handlerIndex, result, exception);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void complete(int handlerIndex, T result, Exception exception) {
+        this.result = result;
+        this.exception = exception;
         this.triggered = handlerIndex;
-        triggerHandler();
-    }
-
-    private void triggerHandler(){
-        if ( triggered != -1 && nextPromise != null ) {
-            Handler<T> handler = handlers[triggered];
-            if ( handler != null ) {
-                Triggered<T> triggered = new Triggered<>(this);
-                try {
-                    handler.trigger(triggered);
-                } catch (Exception e) {
-                    forward(FAILURE_HANDLER, result, e);
+        PromiseTracer tracer = Promise.tracer;
+        if ( tracer != null ) tracer.triggered(this, handlerIndex == SUCCESS_HANDLER);
+        releaseWaiters();
+        Subscriber<T> pending = SUBSCRIBERS.getAndSet(this, TRIGGERED);
+        if ( pending != null ) {
+            for ( Subscriber<T> subscriber = pending; subscriber != null; subscriber = subscriber.next ) {
+                subscriber.source = this;
+            }
+            Trampoline.current().dispatch(reverse(pending), pending);
+        }
+    }
+
+    private static <T> Subscriber<T> reverse(Subscriber<T> stack) {
+        Subscriber<T> ordered = null;
+        while ( stack != null ) {
+            Subscriber<T> next = stack.next;
+            stack.next = ordered;
+            ordered = stack;
+            stack = next;
+        }
+        return ordered;
+    }
+
+    private void dispatch(Subscriber<T> subscriber){
+        if ( subscriber.executor != null ) {
+            subscriber.source = this;
+            try {
+                subscriber.executor.execute(subscriber);
+            } catch ( RejectedExecutionException e ) {
+                subscriber.source = null;
+                subscriber.rejected(e);
+            }
+        }
+        else {
+            subscriber.invoke(this);
+        }
+    }
+
+    private void invoke(final Subscriber<T> subscriber){
+        if ( subscriber.nextPromise.wasTriggered() ) return;
+        Handler<T> handler = triggered == SUCCESS_HANDLER ? subscriber.success : subscriber.failure;
+        if ( handler == null ) {
+            subscriber.nextPromise.trigger(triggered, result, exception);
+            return;
+        }
+        Triggered<T> triggered = new Triggered<>(this);
+        PromiseTracer tracer = Promise.tracer;
+        if ( tracer != null ) tracer.handlerStarted(this, subscriber.nextPromise);
+        try {
+            handler.trigger(triggered);
+        } catch (Exception e) {
+            triggered.forward(FAILURE_HANDLER, result, e);
+        }
+        if ( tracer != null ) tracer.handlerFinished(this, subscriber.nextPromise);
+        if ( triggered.nextPromise != null ) {
+            subscriber.nextPromise.dependOn(triggered.nextPromise);
+            triggered.nextPromise.any(new Handler<T>() {
+                @Override
+                public void trigger(Triggered<T> p) throws Exception {
+                    subscriber.nextPromise.trigger(p.wasSuccessful() ? SUCCESS_HANDLER : FAILURE_HANDLER, p.getResult(), p.getException());
+                }
+            });
+        }
+        else {
+            subscriber.nextPromise.trigger(triggered.forwardTrigger, triggered.forwardResult, triggered.forwardException);
+        }
+    }
+
+    private static class Subscriber<T> implements Runnable {
+        private final Executor executor;
+        private final Handler<T> success, failure;
+        private final Promise<T> nextPromise;
+        Subscriber<T> next;
+        Promise<T> source;
+
+        Subscriber(Executor executor, Handler<T> success, Handler<T> failure, Promise<T> nextPromise){
+            this.executor = executor;
+            this.success = success;
+            this.failure = failure;
+            this.nextPromise = nextPromise;
+        }
+
+        void dispatch() {
+            Promise<T> source = this.source;
+            this.source = null;
+            source.dispatch(this);
+        }
+
+        @Override
+        public void run() {
+            Promise<T> source = this.source;
+            this.source = null;
+            invoke(source);
+        }
+
+        void invoke(Promise<T> source) {
+            source.invoke(this);
+        }
+
+        void rejected(Exception e) {
+            nextPromise.trigger(FAILURE_HANDLER, null, e);
+        }
+    }
+
+    /**
+     * Single node standing for a then(Convert), then(PromiseRunnable), filter() or defer() stage: it is
+     * the subscriber, the handler and the owner of the stage's defer at once, where a handler pair would
+     * add an intermediate promise and a Triggered per stage.
+     */
+    private static abstract class Stage<T, U> extends Subscriber<T> {
+        final Defer<U> defer = new Defer<>();
+
+        Stage(Executor executor) {
+            super(executor, null, null, null);
+        }
+
+        abstract void fire(Promise<T> source) throws Exception;
+
+        @Override
+        void invoke(Promise<T> source) {
+            if ( defer.promise.wasTriggered() ) return;
+            PromiseTracer tracer = Promise.tracer;
+            if ( tracer != null ) tracer.handlerStarted(source, defer.promise);
+            try {
+                fire(source);
+            } catch ( Exception e ) {
+                defer.rejectWithException(e);
+            }
+            if ( tracer != null ) tracer.handlerFinished(source, defer.promise);
+        }
+
+        @Override
+        void rejected(Exception e) {
+            defer.rejectWithException(e);
+        }
+    }
+
+    /**
+     * Shared state of a combinator, each input promise is observed by a bare subscriber carrying its
+     * index instead of a handler pair and a chained promise.
+     */
+    private static abstract class Aggregate<T, R> {
+        protected final Defer<R> defer = new Defer<>();
+        protected final AtomicInteger pending;
+        private int count;
+
+        Aggregate(int count) {
+            this.pending = new AtomicInteger(count);
+        }
+
+        Aggregate<T, R> addAll(List<Promise<T>> promises) {
+            for ( Promise<T> promise: promises ) {
+                add(promise);
+            }
+            return this;
+        }
+
+        void add(Promise<T> promise) {
+            promise.addSubscriber(new AggregateSubscriber<>(this, count++));
+        }
+
+        Promise<R> promise() {
+            if ( count == 0 ) {
+                completeEmpty();
+            }
+            return defer.promise;
+        }
+
+        abstract void triggered(Promise<T> promise, int index);
+
+        abstract void completeEmpty();
+    }
+
+    private static class AggregateSubscriber<T> extends Subscriber<T> {
+        private final Aggregate<T, ?> aggregate;
+        private final int index;
+
+        AggregateSubscriber(Aggregate<T, ?> aggregate, int index) {
+            super(null, null, null, null);
+            this.aggregate = aggregate;
+            this.index = index;
+        }
+
+        @Override
+        void dispatch() {
+            Promise<T> source = this.source;
+            this.source = null;
+            aggregate.triggered(source, index);
+        }
+    }
+
+    private static class AllAggregate<T> extends Aggregate<T, List<T>> {
+        private final Object[] results;
+
+        AllAggregate(int count) {
+            super(count);
+            results = new Object[count];
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        void triggered(Promise<T> promise, int index) {
+            if ( promise.wasSuccessful() ) {
+                results[index] = promise.result;
+                if ( pending.decrementAndGet() == 0 ) {
+                    defer.resolveWithResult((List<T>)Arrays.asList(results));
                 }
-                intermediatePromise = triggered.nextPromise;
-            }
-            nullifyInternals();
-            if ( intermediatePromise != null ) {
-                nullifyForward();
-                intermediatePromise.any(new Handler<T>() {
-                    @Override
-                    public void trigger(Triggered<T> p) throws Exception {
-                        nextPromise.trigger(p.wasSuccessful() ? SUCCESS_HANDLER : FAILURE_HANDLER, p.getResult(), p.getException());
+            }
+            else {
+                defer.rejectWithException(promise.exception);
+            }
+        }
+
+        @Override
+        void completeEmpty() {
+            defer.resolveWithResult(Collections.<T>emptyList());
+        }
+    }
+
+    private static class MapAggregate<U, T> extends AllAggregate<T> {
+        private final Object[] entries;
+        private final int concurrency;
+        private final ListDefer<U, T> deferBlock;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicReferenceArray<Promise<T>> running;
+
+        MapAggregate(List<U> list, int concurrency, ListDefer<U, T> deferBlock) {
+            super(list.size());
+            this.entries = list.toArray();
+            this.concurrency = concurrency;
+            this.deferBlock = deferBlock;
+            this.running = new AtomicReferenceArray<>(entries.length);
+        }
+
+        @Override
+        Promise<List<T>> promise() {
+            if ( entries.length == 0 ) {
+                completeEmpty();
+                return defer.promise;
+            }
+            defer.onCancel(new Runnable() {
+                @Override
+                public void run() {
+                    for ( int i = 0; i < running.length(); i++ ) {
+                        Promise<T> promise = running.getAndSet(i, null);
+                        if ( promise != null ) promise.cancel();
                     }
-                });
+                }
+            });
+            for ( int i = Math.min(concurrency, entries.length); i > 0; i-- ) {
+                startNext();
+            }
+            return defer.promise;
+        }
+
+        @Override
+        void triggered(Promise<T> promise, int index) {
+            running.set(index, null);
+            super.triggered(promise, index);
+            startNext();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void startNext() {
+            if ( defer.promise.wasTriggered() ) return;
+            int index = next.getAndIncrement();
+            if ( index >= entries.length ) return;
+            Defer<T> entry = new Defer<>();
+            running.set(index, entry.promise);
+            if ( defer.promise.isCanceled() ) {
+                entry.promise.cancel();
+                return;
+            }
+            try {
+                deferBlock.trigger(entry, (U)entries[index]);
+            } catch ( Exception e ) {
+                entry.rejectWithException(e);
+            }
+            entry.promise.addSubscriber(new AggregateSubscriber<>(this, index));
+        }
+    }
+
+    private static class SettledAggregate<T> extends Aggregate<T, List<Settled<T>>> {
+        private final Settled<T>[] results;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        SettledAggregate(int count) {
+            super(count);
+            results = new Settled[count];
+        }
+
+        @Override
+        void triggered(Promise<T> promise, int index) {
+            results[index] = new Settled<>(promise.wasSuccessful(), promise.result, promise.exception);
+            if ( pending.decrementAndGet() == 0 ) {
+                defer.resolveWithResult(Arrays.asList(results));
+            }
+        }
+
+        @Override
+        void completeEmpty() {
+            defer.resolveWithResult(Collections.<Settled<T>>emptyList());
+        }
+    }
+
+    private static class RaceAggregate<T> extends Aggregate<T, T> {
+        RaceAggregate(int count) {
+            super(count);
+        }
+
+        @Override
+        void triggered(Promise<T> promise, int index) {
+            if ( promise.wasSuccessful() ) {
+                defer.resolveWithResult(promise.result);
             }
             else {
-                nextPromise.trigger(forwardTrigger, forwardResult, forwardException);
-                nullifyForward();
+                defer.rejectWithException(promise.exception);
             }
         }
+
+        @Override
+        void completeEmpty() {
+        }
+    }
+
+    private static class AnyAggregate<T> extends Aggregate<T, T> {
+        private final Exception[] exceptions;
+
+        AnyAggregate(int count) {
+            super(count);
+            exceptions = new Exception[count];
+        }
+
+        @Override
+        void triggered(Promise<T> promise, int index) {
+            if ( promise.wasSuccessful() ) {
+                defer.resolveWithResult(promise.result);
+            }
+            else {
+                exceptions[index] = promise.exception;
+                if ( pending.decrementAndGet() == 0 ) {
+                    completeEmpty();
+                }
+            }
+        }
+
+        @Override
+        void completeEmpty() {
+            defer.rejectWithException(new AllFailedException(Arrays.asList(exceptions)));
+        }
     }
 
-    private void nullifyInternals(){
-        result = null; exception = null;
-        handlers[0] = handlers[1] = null;
+    /**
+     * Outcome of a single promise reported by allSettled.
+     */
+    public static class Settled<T> {
+        private final boolean successful;
+        private final T result;
+        private final Exception exception;
+
+        Settled(boolean successful, T result, Exception exception) {
+            this.successful = successful;
+            this.result = result;
+            this.exception = exception;
+        }
+
+        public boolean wasSuccessful() {
+            return successful;
+        }
+
+        public T getResult() {
+            return result;
+        }
+
+        public Exception getException() {
+            return exception;
+        }
     }
 
-    private void nullifyForward(){
-        forwardResult = null; forwardException = null;
+    /**
+     * Rejection of Promise.any when none of the promises succeeded.
+     */
+    public static class AllFailedException extends Exception {
+        private final static long serialVersionUID = 1L;
+
+        private final List<Exception> exceptions;
+
+        public AllFailedException(List<Exception> exceptions) {
+            super(exceptions.size() + " promises failed");
+            this.exceptions = exceptions;
+        }
+
+        public List<Exception> getExceptions() {
+            return exceptions;
+        }
+    }
+
+    /**
+     * Per thread queue of subscribers waiting to be dispatched. Subscribers of promises triggered while
+     * a handler is running are queued and dispatched once it returns instead of recursively, so the
+     * length of a chain is bounded by the heap rather than by the stack.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static class Trampoline {
+        private static final ThreadLocal<Trampoline> trampoline = new ThreadLocal<Trampoline>() {
+            @Override
+            protected Trampoline initialValue() {
+                return new Trampoline();
+            }
+        };
+
+        private Subscriber head, tail;
+        private boolean running;
+
+        static Trampoline current() {
+            return trampoline.get();
+        }
+
+        void dispatch(Subscriber first, Subscriber last) {
+            if ( tail == null ) {
+                head = first;
+            }
+            else {
+                tail.next = first;
+            }
+            tail = last;
+            if ( !running ) {
+                drain();
+            }
+        }
+
+        /**
+         * Dispatches all queued subscribers, also called by a thread about to block on a promise so
+         * work queued behind its current handler can't keep that promise from being triggered.
+         * @return true if any subscriber was dispatched
+         */
+        boolean drain() {
+            boolean wasRunning = running;
+            boolean dispatched = false;
+            running = true;
+            try {
+                Subscriber subscriber;
+                while ( (subscriber = head) != null ) {
+                    head = subscriber.next;
+                    if ( head == null ) {
+                        tail = null;
+                    }
+                    subscriber.next = null;
+                    subscriber.dispatch();
+                    dispatched = true;
+                }
+            } finally {
+                running = wasRunning;
+            }
+            return dispatched;
+        }
     }
 
     public static <U> Filter<U, String> toStringFilter() {
@@ -382,19 +1134,54 @@ public class Promise<T> {
     }
 
     public static class Defer<T> {
-        private final AtomicBoolean triggered = new AtomicBoolean();
         public final Promise<T> promise = new Promise<>();
 
         public Promise<T> resolveWithResult(T result) {
-            if ( !verifyNotTriggered() ) return null;
-            promise.trigger(SUCCESS_HANDLER, result, null);
-            return promise;
+            return promise.trigger(SUCCESS_HANDLER, result, null) ? promise : null;
         }
 
         public Promise<T> rejectWithException(Exception exception) {
-            if ( !verifyNotTriggered() ) return null;
-            promise.trigger(FAILURE_HANDLER, null, exception);
-            return promise;
+            return promise.trigger(FAILURE_HANDLER, null, exception) ? promise : null;
+        }
+
+        public boolean isCanceled() {
+            return promise.isCanceled();
+        }
+
+        /**
+         * Runs the runnable on the canceling thread when the promise is canceled, or immediately if it
+         * already was. Producers use it to abort the work that would resolve this defer.
+         */
+        public Defer<T> onCancel(final Runnable runnable) {
+            promise.observe(new Handler<T>() {
+                @Override
+                public void trigger(Triggered<T> p) throws Exception {
+                    if ( promise.isCanceled() ) {
+                        runnable.run();
+                    }
+                }
+            });
+            return this;
+        }
+
+        /**
+         * Cancels the promise with a TimeoutException if the defer isn't resolved or rejected within the
+         * given time, the producer sees it through isCanceled() and onCancel() like any cancellation.
+         */
+        public Defer<T> deadline(long millis) {
+            final HashedWheelTimer.Timeout timeout = HashedWheelTimer.shared().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    promise.cancel(new TimeoutException());
+                }
+            }, millis, TimeUnit.MILLISECONDS);
+            promise.observe(new Handler<T>() {
+                @Override
+                public void trigger(Triggered<T> p) throws Exception {
+                    timeout.cancel();
+                }
+            });
+            return this;
         }
 
         public Promise<T> then(Handler<T> thenHandler, Handler<T> failHandler) {
@@ -412,10 +1199,6 @@ public class Promise<T> {
         public Promise<T> any(Handler<T> handler) {
             return promise.any(handler);
         }
-
-        private boolean verifyNotTriggered() {
-            return !triggered.getAndSet(true);
-        }
     }
 
     public interface Convert<From, To> {
@@ -451,10 +1234,21 @@ public class Promise<T> {
         private final T result;
         private final Exception exception;
         private Promise<T> nextPromise;
+        private int forwardTrigger;
+        private T forwardResult;
+        private Exception forwardException;
+
         protected Triggered(Promise<T> promise){
             this.promise = promise;
-            this.result = promise.result;
-            this.exception = promise.exception;
+            this.result = this.forwardResult = promise.result;
+            this.exception = this.forwardException = promise.exception;
+            this.forwardTrigger = promise.triggered;
+        }
+
+        private void forward(int triggerType, T result, Exception exception){
+            forwardTrigger = triggerType;
+            forwardResult = result;
+            forwardException = exception;
         }
 
         public boolean wasSuccessful() {
@@ -470,11 +1264,11 @@ public class Promise<T> {
         }
 
         public void successfulWithResult(T result) {
-            promise.forward(SUCCESS_HANDLER, result, promise.forwardException);
+            forward(SUCCESS_HANDLER, result, forwardException);
         }
 
         public void failureWithException(Exception exception) {
-            promise.forward(FAILURE_HANDLER, promise.forwardResult, exception);
+            forward(FAILURE_HANDLER, forwardResult, exception);
         }
 
         public void trigger(Defer<T> defer){
@@ -497,4 +1291,4 @@ public class Promise<T> {
         }
 
     }
-}
+}
\ No newline at end of file
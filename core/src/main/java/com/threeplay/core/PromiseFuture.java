@@ -0,0 +1,110 @@
+package com.threeplay.core;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future view of a promise, usable on every API level. A rejected promise fails get() with an
+ * ExecutionException wrapping its exception and a canceled one with a CancellationException.
+ * Canceling the future cancels its subscription to the promise, which cancels the promise itself
+ * once no other dependent is waiting for it.
+ */
+public class PromiseFuture<T> implements Future<T> {
+    private final Promise<T> promise;
+
+    public PromiseFuture(Promise<T> promise) {
+        this.promise = promise.any(new Promise.Handler<T>() {
+            @Override
+            public void trigger(Promise.Triggered<T> p) throws Exception {
+            }
+        });
+    }
+
+    /**
+     * Returns a promise triggered with the outcome of the future, waiting for it on the given executor.
+     * An ExecutionException is unwrapped to its cause, a canceled future cancels the promise and
+     * canceling the promise cancels the future, interrupting the waiting thread.
+     */
+    public static <T> Promise<T> promise(final Future<T> future, Executor executor) {
+        final Promise.Defer<T> defer = Promise.defer();
+        defer.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                future.cancel(true);
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if ( defer.isCanceled() ) return;
+                try {
+                    defer.resolveWithResult(future.get());
+                } catch ( CancellationException e ) {
+                    defer.promise.cancel();
+                } catch ( ExecutionException e ) {
+                    defer.rejectWithException(unwrap(e));
+                } catch ( InterruptedException e ) {
+                    defer.rejectWithException(e);
+                }
+            }
+        });
+        return defer.promise;
+    }
+
+    private static Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        return cause instanceof Exception ? (Exception)cause : e;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return promise.cancel();
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return promise.wasTriggered() && promise.getException() instanceof CancellationException;
+    }
+
+    @Override
+    public boolean isDone() {
+        return promise.wasTriggered();
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        try {
+            promise.joinInterruptibly();
+        } catch ( Exception e ) {
+            if ( !promise.wasTriggered() ) throw (InterruptedException)e;
+        }
+        return outcome();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        try {
+            promise.join(timeout, unit);
+        } catch ( InterruptedException | TimeoutException e ) {
+            if ( !promise.wasTriggered() ) throw e;
+        } catch ( Exception e ) {
+            // the promise was rejected, reported by outcome()
+        }
+        return outcome();
+    }
+
+    private T outcome() throws ExecutionException {
+        if ( promise.wasSuccessful() ) {
+            return promise.getResult();
+        }
+        Exception e = promise.getException();
+        if ( e instanceof CancellationException ) {
+            throw (CancellationException)e;
+        }
+        throw new ExecutionException(e);
+    }
+}
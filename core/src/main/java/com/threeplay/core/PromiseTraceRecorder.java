@@ -0,0 +1,215 @@
+package com.threeplay.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PromiseTracer keeping the timeline of each stage in memory, exportable as Chrome trace-event JSON
+ * (chrome://tracing or Perfetto). Stages hold on to their promises until clear() is called, the recorder
+ * stops recording new stages once its capacity is reached.
+ *
+ *   PromiseTraceRecorder recorder = new PromiseTraceRecorder(10000);
+ *   Promise.setTracer(recorder);
+ *   ...
+ *   Promise.setTracer(null);
+ *   recorder.writeChromeTrace(writer);
+ */
+public class PromiseTraceRecorder implements PromiseTracer {
+    private final int capacity;
+    private final Map<Promise<?>, Stage> stages = new ConcurrentHashMap<>();
+    private final AtomicInteger ids = new AtomicInteger();
+    private final long origin = System.nanoTime();
+
+    public PromiseTraceRecorder(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public static class Stage {
+        private final int id;
+        private final long createdAt;
+        private final String createdOn;
+        private volatile Stage parent;
+        private volatile long triggeredAt = -1;
+        private volatile boolean successful;
+        private volatile long handlerStartedAt = -1;
+        private volatile long handlerFinishedAt = -1;
+        private volatile String handlerRanOn;
+
+        Stage(int id, long createdAt, String createdOn) {
+            this.id = id;
+            this.createdAt = createdAt;
+            this.createdOn = createdOn;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public Stage getParent() {
+            return parent;
+        }
+
+        /**
+         * Times are in nanoseconds since the recorder was created, -1 if the step didn't happen yet.
+         */
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        public long getTriggeredAt() {
+            return triggeredAt;
+        }
+
+        public long getHandlerStartedAt() {
+            return handlerStartedAt;
+        }
+
+        public long getHandlerFinishedAt() {
+            return handlerFinishedAt;
+        }
+
+        public boolean wasSuccessful() {
+            return successful;
+        }
+
+        public String getCreatedOn() {
+            return createdOn;
+        }
+
+        public String getHandlerRanOn() {
+            return handlerRanOn;
+        }
+
+        /**
+         * Time the handler producing this stage waited for a thread once its parent was triggered.
+         */
+        public long getQueuedTime() {
+            Stage parent = this.parent;
+            if ( parent == null || parent.triggeredAt < 0 || handlerStartedAt < 0 ) return -1;
+            return handlerStartedAt - parent.triggeredAt;
+        }
+
+        public long getHandlerTime() {
+            return handlerFinishedAt < 0 ? -1 : handlerFinishedAt - handlerStartedAt;
+        }
+    }
+
+    @Override
+    public void created(Promise<?> promise) {
+        if ( stages.size() >= capacity ) return;
+        stages.put(promise, new Stage(ids.incrementAndGet(), now(), Thread.currentThread().getName()));
+    }
+
+    @Override
+    public void linked(Promise<?> promise, Promise<?> parent) {
+        Stage stage = stages.get(promise);
+        if ( stage != null ) {
+            stage.parent = stages.get(parent);
+        }
+    }
+
+    @Override
+    public void triggered(Promise<?> promise, boolean successful) {
+        Stage stage = stages.get(promise);
+        if ( stage != null ) {
+            stage.successful = successful;
+            stage.triggeredAt = now();
+        }
+    }
+
+    @Override
+    public void handlerStarted(Promise<?> source, Promise<?> next) {
+        Stage stage = stages.get(next);
+        if ( stage != null ) {
+            stage.handlerRanOn = Thread.currentThread().getName();
+            stage.handlerStartedAt = now();
+        }
+    }
+
+    @Override
+    public void handlerFinished(Promise<?> source, Promise<?> next) {
+        Stage stage = stages.get(next);
+        if ( stage != null ) {
+            stage.handlerFinishedAt = now();
+        }
+    }
+
+    private long now() {
+        return System.nanoTime() - origin;
+    }
+
+    /**
+     * @return Recorded stages ordered by creation
+     */
+    public List<Stage> getStages() {
+        List<Stage> list = new ArrayList<>(stages.values());
+        Collections.sort(list, new Comparator<Stage>() {
+            @Override
+            public int compare(Stage s1, Stage s2) {
+                return s1.id < s2.id ? -1 : (s1.id == s2.id ? 0 : 1);
+            }
+        });
+        return list;
+    }
+
+    public void clear() {
+        stages.clear();
+    }
+
+    /**
+     * Writes every stage as an async span from creation to trigger and its handler as a complete event
+     * on the thread it ran on, parents are referenced in the event args.
+     */
+    public void writeChromeTrace(Writer writer) throws IOException {
+        writer.write("{\"traceEvents\":[");
+        boolean first = true;
+        for ( Stage stage: getStages() ) {
+            String args = "{\"parent\":" + (stage.parent != null ? stage.parent.id : -1) + "}";
+            first = writeEvent(writer, first, "promise #" + stage.id, "promise", "b", stage.createdAt, -1, stage.createdOn, stage.id, args);
+            if ( stage.triggeredAt >= 0 ) {
+                String result = "{\"successful\":" + stage.successful + "}";
+                first = writeEvent(writer, first, "promise #" + stage.id, "promise", "e", stage.triggeredAt, -1, stage.createdOn, stage.id, result);
+            }
+            if ( stage.handlerFinishedAt >= 0 ) {
+                first = writeEvent(writer, first, "handler #" + stage.id, "handler", "X", stage.handlerStartedAt,
+                        stage.handlerFinishedAt - stage.handlerStartedAt, stage.handlerRanOn, stage.id, args);
+            }
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    private static boolean writeEvent(Writer writer, boolean first, String name, String category, String phase,
+                                      long time, long duration, String thread, int id, String args) throws IOException {
+        if ( !first ) writer.write(",");
+        writer.write("\n{\"name\":\"" + name + "\",\"cat\":\"" + category + "\",\"ph\":\"" + phase + "\"");
+        writer.write(",\"ts\":" + micros(time));
+        if ( duration >= 0 ) writer.write(",\"dur\":" + micros(duration));
+        writer.write(",\"pid\":1,\"tid\":\"" + escape(thread) + "\",\"id\":" + id + ",\"args\":" + args + "}");
+        return false;
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1000.0);
+    }
+
+    private static String escape(String value) {
+        if ( value == null ) return "";
+        StringBuilder builder = new StringBuilder(value.length());
+        for ( int i = 0; i < value.length(); i++ ) {
+            char c = value.charAt(i);
+            if ( c == '"' || c == '\\' ) builder.append('\\').append(c);
+            else if ( c < 0x20 ) builder.append(String.format(Locale.US, "\\u%04x", (int)c));
+            else builder.append(c);
+        }
+        return builder.toString();
+    }
+}
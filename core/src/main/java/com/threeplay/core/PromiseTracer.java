@@ -0,0 +1,25 @@
+package com.threeplay.core;
+
+/**
+ * Hook notified of every promise stage once installed with Promise.setTracer(), see PromiseTraceRecorder.
+ * Calls are made on the thread performing the step, so implementations take their own timestamps and
+ * must be thread safe. While no tracer is installed promises only pay a null check per step.
+ */
+public interface PromiseTracer {
+    void created(Promise<?> promise);
+
+    /**
+     * The promise waits for parent, either the promise it was chained to or the one its handler
+     * continued after.
+     */
+    void linked(Promise<?> promise, Promise<?> parent);
+
+    void triggered(Promise<?> promise, boolean successful);
+
+    /**
+     * A handler subscribed to source started running, its outcome triggers next.
+     */
+    void handlerStarted(Promise<?> source, Promise<?> next);
+
+    void handlerFinished(Promise<?> source, Promise<?> next);
+}
@@ -0,0 +1,22 @@
+package com.threeplay.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * RandomAccessInput that reads straight into ByteBuffers and hands out read-only views of its content,
+ * so decoders taking buffers don't need to go through byte arrays.
+ */
+public interface RandomAccessBufferInput extends RandomAccessInput {
+    /**
+     * Reads up to dst.remaining() bytes at an absolute offset, advancing the position of dst.
+     * @return Number of bytes read, -1 past the end of the input
+     */
+    int read(ByteBuffer dst, long inputOffset);
+
+    /**
+     * @return Read-only buffer of the range, sharing the input's memory when the input holds the range in a
+     * single buffer and a copy otherwise
+     * @throws IndexOutOfBoundsException If the range isn't inside the input
+     */
+    ByteBuffer slice(long inputOffset, int length);
+}
@@ -4,6 +4,11 @@ package com.threeplay.core;
  * Created by eliranbe on 5/21/16.
  */
 public interface RandomAccessInput {
+    /**
+     * Reads at an absolute offset without any position of its own, an input shared by substreams read on
+     * different threads has to support concurrent calls.
+     * @return Number of bytes read, -1 past the end of the input
+     */
     int read(byte[] buf, int bufOffset, long inputOffset, int length);
     long size();
 }
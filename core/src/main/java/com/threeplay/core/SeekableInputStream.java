@@ -5,14 +5,29 @@ import android.support.annotation.NonNull;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Created by eliranbe on 5/22/16.
+ *
+ * A stream keeps its own offset and read-ahead buffer and should be read by one thread at a time.
+ * Substreams only share the RandomAccessInput, the inputs of fromBytes(), fromFile() and fromFileMapped()
+ * support concurrent reads, so sibling substreams of those can be read on different threads.
  */
 public class SeekableInputStream {
+    private final static int READ_AHEAD_SIZE = 4096;
+
     private RandomAccessInput input;
     private long base, offset;
     private long maximumLength;
+    private byte[] readAhead;
+    private long readAheadStart;
+    private int readAheadLength;
 
     public static SeekableInputStream fromBytes(byte[] bytes) {
         return new SeekableInputStream(new RandomAccessBytes(bytes));
@@ -26,6 +41,18 @@ public class SeekableInputStream {
             return null;
         }
     }
+    /**
+     * Stream reading the file through memory mappings, reads are memory copies instead of system calls.
+     */
+    public static SeekableInputStream fromFileMapped(File file) {
+        try {
+            return new SeekableInputStream(new MappedFileInput(new RandomAccessFile(file, "r").getChannel()));
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     public SeekableInputStream(RandomAccessInput input) {
         this(input, 0, input.size());
     }
@@ -71,6 +98,11 @@ public class SeekableInputStream {
     public int nextBytes(byte[] buf, int bufOffset, int length) {
         long maxLength = availableBytes();
         if (length > maxLength) length = (int) maxLength;
+        if (length > 0 && offset >= readAheadStart && offset + length <= readAheadStart + readAheadLength) {
+            System.arraycopy(readAhead, (int)(offset - readAheadStart), buf, bufOffset, length);
+            offset += length;
+            return length;
+        }
         int byteCount = input.read(buf, bufOffset, base + offset, length);
         if (byteCount <= 0) return -1;
         offset += byteCount;
@@ -82,42 +114,258 @@ public class SeekableInputStream {
         return nextBytes(buf, 0, buf.length);
     }
 
+    /**
+     * Reads up to dst.remaining() bytes, advancing the position of dst.
+     * @return Number of bytes read, -1 at the end of the stream
+     */
+    public int nextBytes(ByteBuffer dst) {
+        int length = (int)Math.min(dst.remaining(), availableBytes());
+        if (!(input instanceof RandomAccessBufferInput)) {
+            if (dst.hasArray()) {
+                int byteCount = nextBytes(dst.array(), dst.arrayOffset() + dst.position(), length);
+                if (byteCount > 0) dst.position(dst.position() + byteCount);
+                return byteCount;
+            }
+            byte[] bytes = new byte[length];
+            int byteCount = nextBytes(bytes);
+            if (byteCount > 0) dst.put(bytes, 0, byteCount);
+            return byteCount;
+        }
+        if (length <= 0) return -1;
+        int limit = dst.limit();
+        dst.limit(dst.position() + length);
+        int byteCount;
+        try {
+            byteCount = ((RandomAccessBufferInput)input).read(dst, base + offset);
+        } finally {
+            dst.limit(limit);
+        }
+        if (byteCount <= 0) return -1;
+        offset += byteCount;
+        return byteCount;
+    }
+
+    /**
+     * Read-only buffer of the bytes left in the stream, the stream's offset doesn't move. Byte array and
+     * memory mapped streams return a view of their memory, so a substream can be handed to a decoder
+     * taking buffers without copying, other inputs are copied.
+     * @throws IllegalStateException If more than 2GB are left in the stream
+     */
+    public ByteBuffer asByteBuffer() {
+        long length = availableBytes();
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException(length + " bytes don't fit in a ByteBuffer");
+        }
+        return slice((int)length);
+    }
+
+    /**
+     * Decodes up to len values through a typed view of the stream's bytes instead of one call per value.
+     * Byte array and memory mapped streams decode straight from their memory, other inputs copy the range
+     * once.
+     * @return Number of values read, fewer than len only at the end of the stream, -1 if not a single
+     * value is left
+     */
+    public int readShorts(short[] dst, int off, int len, ByteOrder order) {
+        ByteBuffer bytes = nextValues(dst.length, off, len, 2, order);
+        if (bytes == null) return -1;
+        int count = bytes.remaining() / 2;
+        bytes.asShortBuffer().get(dst, off, count);
+        return count;
+    }
+
+    public int readInts(int[] dst, int off, int len, ByteOrder order) {
+        ByteBuffer bytes = nextValues(dst.length, off, len, 4, order);
+        if (bytes == null) return -1;
+        int count = bytes.remaining() / 4;
+        bytes.asIntBuffer().get(dst, off, count);
+        return count;
+    }
+
+    public int readLongs(long[] dst, int off, int len, ByteOrder order) {
+        ByteBuffer bytes = nextValues(dst.length, off, len, 8, order);
+        if (bytes == null) return -1;
+        int count = bytes.remaining() / 8;
+        bytes.asLongBuffer().get(dst, off, count);
+        return count;
+    }
+
+    public int readFloats(float[] dst, int off, int len, ByteOrder order) {
+        ByteBuffer bytes = nextValues(dst.length, off, len, 4, order);
+        if (bytes == null) return -1;
+        int count = bytes.remaining() / 4;
+        bytes.asFloatBuffer().get(dst, off, count);
+        return count;
+    }
+
+    /**
+     * Moves the stream past the whole values left, up to len of them, a trailing partial value isn't read.
+     * @return Buffer of their bytes in the given order, null if not a single value is left
+     */
+    private ByteBuffer nextValues(int arrayLength, int off, int len, int valueSize, ByteOrder order) {
+        if (off < 0 || len < 0 || off + len > arrayLength) {
+            throw new IndexOutOfBoundsException("Range " + off + "+" + len + " outside of " + arrayLength + " values");
+        }
+        long count = Math.min(Math.min(len, Integer.MAX_VALUE / valueSize), availableBytes() / valueSize);
+        if (count == 0 && len > 0) return null;
+        ByteBuffer bytes = slice((int)count * valueSize);
+        offset += bytes.remaining();
+        return bytes.order(order);
+    }
+
+    private ByteBuffer slice(int length) {
+        if (input instanceof RandomAccessBufferInput) {
+            return ((RandomAccessBufferInput)input).slice(base + offset, length);
+        }
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        int filled = 0;
+        while (filled < length) {
+            int byteCount = input.read(copy.array(), filled, base + offset + filled, length - filled);
+            if (byteCount <= 0) break;
+            filled += byteCount;
+        }
+        copy.limit(filled);
+        return copy.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return The next byte as a signed value, -1 past the end of the stream
+     */
     public int nextByte() {
-        byte[] by = new byte[1];
-        if (nextBytes(by) != 1) return -1;
-        return by[0];
+        int index = readAhead(1);
+        if (index < 0) return -1;
+        offset += 1;
+        return readAhead[index];
+    }
+
+    /**
+     * @return The next byte between 0 and 255, -1 past the end of the stream
+     */
+    public int nextUnsignedByte() {
+        int index = readAhead(1);
+        if (index < 0) return -1;
+        offset += 1;
+        return readAhead[index] & 0xff;
     }
 
     public int next16LEbits() {
-        byte[] by = new byte[2];
-        if (nextBytes(by) != by.length) return -1;
-        int result = ((int)by[1])&0xff;
-        return result<<8 | (((int)by[0])&0xff);
+        return (int)nextLittleEndian(2);
     }
 
     public int next32LEbits() {
-        byte[] by = new byte[4];
-        if (nextBytes(by) != by.length) return -1;
-        int result = ((int)by[3])&0xff;
-        result = result<<8 | (((int)by[2])&0xff);
-        result = result<<8 | (((int)by[1])&0xff);
-        return result<<8 | (((int)by[0])&0xff);
+        return (int)nextLittleEndian(4);
+    }
+
+    /**
+     * @return The next 32 bits as an unsigned value, -1 past the end of the stream
+     */
+    public long nextUnsigned32LEbits() {
+        return nextLittleEndian(4);
+    }
+
+    /**
+     * @return The next 64 bits, -1 past the end of the stream
+     */
+    public long next64LEbits() {
+        return nextLittleEndian(8);
     }
 
     public int next16BEbits() {
-        byte[] by = new byte[2];
-        if (nextBytes(by) != 2) return -1;
-        int result = ((int)by[0])&0xff;
-        return result << 8 | (((int)by[1])&0xff);
+        return (int)nextBigEndian(2);
     }
 
     public int next32BEbits() {
-        byte[] by = new byte[4];
-        if (nextBytes(by) != by.length) return -1;
-        int result = ((int)by[0])&0xff;
-        result = result<<8 | (((int)by[1])&0xff);
-        result = result<<8 | (((int)by[2])&0xff);
-        return result<<8 | (((int)by[3])&0xff);
+        return (int)nextBigEndian(4);
+    }
+
+    public long nextUnsigned32BEbits() {
+        return nextBigEndian(4);
+    }
+
+    public long next64BEbits() {
+        return nextBigEndian(8);
+    }
+
+    /**
+     * @return The next IEEE 754 float, NaN past the end of the stream
+     */
+    public float nextFloatLE() {
+        return Float.intBitsToFloat(next32LEbits());
+    }
+
+    public float nextFloatBE() {
+        return Float.intBitsToFloat(next32BEbits());
+    }
+
+    /**
+     * @return The next IEEE 754 double, NaN past the end of the stream
+     */
+    public double nextDoubleLE() {
+        return Double.longBitsToDouble(next64LEbits());
+    }
+
+    public double nextDoubleBE() {
+        return Double.longBitsToDouble(next64BEbits());
+    }
+
+    /**
+     * Reads count bytes as an unsigned little endian value, or -1 after consuming the rest of the
+     * stream if it's shorter.
+     */
+    private long nextLittleEndian(int count) {
+        int index = readAhead(count);
+        if (index < 0) return -1;
+        offset += count;
+        long value = 0;
+        for (int i = index + count - 1; i >= index; i--) {
+            value = value << 8 | (readAhead[i] & 0xff);
+        }
+        return value;
+    }
+
+    private long nextBigEndian(int count) {
+        int index = readAhead(count);
+        if (index < 0) return -1;
+        offset += count;
+        long value = 0;
+        for (int i = index; i < index + count; i++) {
+            value = value << 8 | (readAhead[i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Makes the next count bytes available in the read-ahead buffer, refilling it from the input with up
+     * to READ_AHEAD_SIZE bytes when they aren't there yet. The input is assumed not to change, so the
+     * buffer stays valid across seeks.
+     * @return Index of the next byte in the buffer, -1 if the stream ends first, it's then consumed
+     */
+    private int readAhead(int count) {
+        if (offset >= readAheadStart && offset + count <= readAheadStart + readAheadLength) {
+            return (int)(offset - readAheadStart);
+        }
+        long available = availableBytes();
+        if (readAhead == null) readAhead = new byte[READ_AHEAD_SIZE];
+        int length = (int)Math.min(READ_AHEAD_SIZE, available);
+        int filled = 0;
+        while (filled < count && filled < length) {
+            int byteCount = input.read(readAhead, filled, base + offset + filled, length - filled);
+            if (byteCount <= 0) break;
+            filled += byteCount;
+        }
+        readAheadStart = offset;
+        readAheadLength = filled;
+        if (filled < count) {
+            offset += filled;
+            return -1;
+        }
+        return 0;
+    }
+
+    static void checkRange(long inputOffset, int length, long size) {
+        if ( inputOffset < 0 || length < 0 || inputOffset + length > size ) {
+            throw new IndexOutOfBoundsException("Range " + inputOffset + "+" + length + " outside of " + size + " bytes");
+        }
     }
 
     static class InputStream extends java.io.InputStream {
@@ -152,7 +400,7 @@ public class SeekableInputStream {
         }
     }
 
-    static class RandomAccessBytes implements RandomAccessInput {
+    static class RandomAccessBytes implements RandomAccessBufferInput {
         private byte[] bytes;
         public RandomAccessBytes(byte[] bytes){
             this.bytes = bytes;
@@ -162,39 +410,211 @@ public class SeekableInputStream {
         public int read(byte[] buf, int bufOffset, long inputOffset, int length) {
             long maxLength = Math.min(length, size() - inputOffset);
             if ( maxLength > 0 ) {
-                System.arraycopy(bytes, (int) inputOffset, buf, bufOffset, length);
+                System.arraycopy(bytes, (int) inputOffset, buf, bufOffset, (int)maxLength);
                 return (int)maxLength;
             }
             return -1;
         }
 
+        @Override
+        public int read(ByteBuffer dst, long inputOffset) {
+            long maxLength = Math.min(dst.remaining(), size() - inputOffset);
+            if ( maxLength > 0 ) {
+                dst.put(bytes, (int)inputOffset, (int)maxLength);
+                return (int)maxLength;
+            }
+            return -1;
+        }
+
+        @Override
+        public ByteBuffer slice(long inputOffset, int length) {
+            checkRange(inputOffset, length, size());
+            return ByteBuffer.wrap(bytes, (int)inputOffset, length).slice().asReadOnlyBuffer();
+        }
+
         @Override
         public long size() {
             return bytes.length;
         }
     }
 
-    static class FileInput implements RandomAccessInput {
-        private final RandomAccessFile file;
+    /**
+     * Reads with positional FileChannel reads, which don't move a shared file pointer and so are safe
+     * to issue from several threads.
+     */
+    static class FileInput implements RandomAccessBufferInput {
+        private final FileChannel channel;
 
         public FileInput(RandomAccessFile file){
-            this.file = file;
+            this(file.getChannel());
+        }
+
+        public FileInput(FileChannel channel){
+            this.channel = channel;
         }
 
         @Override
         public int read(byte[] buf, int bufOffset, long inputOffset, int length) {
             try {
-                file.seek(inputOffset);
-                return file.read(buf, bufOffset, length);
+                ByteBuffer buffer = ByteBuffer.wrap(buf, bufOffset, length);
+                int read = 0;
+                while ( buffer.hasRemaining() ) {
+                    int count = channel.read(buffer, inputOffset + read);
+                    if ( count <= 0 ) break;
+                    read += count;
+                }
+                return read > 0 || length == 0 ? read : -1;
             } catch ( IOException ok ) {
                 return -1;
             }
         }
 
+        @Override
+        public int read(ByteBuffer dst, long inputOffset) {
+            int read = 0;
+            try {
+                while ( dst.hasRemaining() ) {
+                    int count = channel.read(dst, inputOffset + read);
+                    if ( count <= 0 ) break;
+                    read += count;
+                }
+            } catch ( IOException ok ) {
+            }
+            return read > 0 ? read : -1;
+        }
+
+        /**
+         * Copies the range, mapping a small range costs more than reading it.
+         */
+        @Override
+        public ByteBuffer slice(long inputOffset, int length) {
+            checkRange(inputOffset, length, size());
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            read(copy, inputOffset);
+            copy.flip();
+            return copy.asReadOnlyBuffer();
+        }
+
         @Override
         public long size() {
-            try { return file.length(); } catch ( IOException ok ) {};
+            try { return channel.size(); } catch ( IOException ok ) {};
             return 0;
         }
     }
+
+    /**
+     * Maps the file in windows of up to 32MB, mapped on first access and kept for the few windows read
+     * last, so large files can be read end to end within the address space of a 32-bit process. A window
+     * dropped from the set is unmapped once the garbage collector finds no view of it left. Every read
+     * copies through its own view of the window, so concurrent reads only contend on finding the window.
+     *
+     * A window that can't be mapped fails the read with an IllegalStateException rather than passing for
+     * the end of the input.
+     */
+    static class MappedFileInput implements RandomAccessBufferInput {
+        private final static int WINDOW_SIZE = 1 << 25;
+        private final static int MAXIMUM_WINDOWS = 4;
+
+        private final FileChannel channel;
+        private final long size;
+        private final int windowSize;
+        private final Map<Integer, MappedByteBuffer> windows;
+
+        public MappedFileInput(FileChannel channel) throws IOException {
+            this(channel, WINDOW_SIZE, MAXIMUM_WINDOWS);
+        }
+
+        MappedFileInput(FileChannel channel, int windowSize, final int maximumWindows) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            this.windowSize = windowSize;
+            this.windows = new LinkedHashMap<Integer, MappedByteBuffer>(maximumWindows + 1, 1, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, MappedByteBuffer> eldest) {
+                    return size() > maximumWindows;
+                }
+            };
+        }
+
+        /**
+         * @throws IllegalStateException If the range can't be mapped
+         */
+        @Override
+        public int read(byte[] buf, int bufOffset, long inputOffset, int length) {
+            if ( inputOffset < 0 || inputOffset >= size ) return -1;
+            length = (int)Math.min(length, size - inputOffset);
+            int read = 0;
+            while ( read < length ) {
+                ByteBuffer view = view(inputOffset + read, length - read);
+                int count = view.remaining();
+                view.get(buf, bufOffset + read, count);
+                read += count;
+            }
+            return read;
+        }
+
+        /**
+         * @throws IllegalStateException If the range can't be mapped
+         */
+        @Override
+        public int read(ByteBuffer dst, long inputOffset) {
+            if ( inputOffset < 0 || inputOffset >= size ) return -1;
+            int length = (int)Math.min(dst.remaining(), size - inputOffset);
+            int read = 0;
+            while ( read < length ) {
+                ByteBuffer view = view(inputOffset + read, length - read);
+                read += view.remaining();
+                dst.put(view);
+            }
+            return read;
+        }
+
+        /**
+         * Ranges inside a single window are views of the mapping, ranges crossing windows are copied.
+         * @throws IllegalStateException If the range can't be mapped
+         */
+        @Override
+        public ByteBuffer slice(long inputOffset, int length) {
+            checkRange(inputOffset, length, size);
+            ByteBuffer view = view(inputOffset, length);
+            if ( view.remaining() == length ) {
+                return view.slice().asReadOnlyBuffer();
+            }
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            read(copy, inputOffset);
+            copy.flip();
+            return copy.asReadOnlyBuffer();
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        /**
+         * @return View of the range up to the end of the window it starts in
+         */
+        private ByteBuffer view(long inputOffset, int length) {
+            MappedByteBuffer window = window((int)(inputOffset / windowSize));
+            int position = (int)(inputOffset % windowSize);
+            ByteBuffer view = window.duplicate();
+            view.position(position);
+            view.limit(position + Math.min(length, window.capacity() - position));
+            return view;
+        }
+
+        private synchronized MappedByteBuffer window(int index) {
+            MappedByteBuffer window = windows.get(index);
+            if ( window == null ) {
+                long start = (long)index * windowSize;
+                try {
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+                } catch ( IOException e ) {
+                    throw new IllegalStateException("Can't map " + windowSize + " bytes at " + start, e);
+                }
+                windows.put(index, window);
+            }
+            return window;
+        }
+    }
 }
@@ -0,0 +1,96 @@
+package com.threeplay.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class BatchingExecutorTest {
+
+    private List<Runnable> posted;
+    private BatchingExecutor executor;
+    private String log;
+
+    @Before
+    public void setup(){
+        posted = new LinkedList<>();
+        log = "";
+        executor = new BatchingExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                posted.add(runnable);
+            }
+        });
+    }
+
+    @Test
+    public void runnables_submitted_before_drain_are_posted_once(){
+        executor.execute(logRunnable("1"));
+        executor.execute(logRunnable("2"));
+        executor.execute(logRunnable("3"));
+        assertThat(posted.size(), is(1));
+        posted.remove(0).run();
+        assertThat(log, is("123"));
+    }
+
+    @Test
+    public void runnables_submitted_after_drain_are_posted_again(){
+        executor.execute(logRunnable("1"));
+        posted.remove(0).run();
+        executor.execute(logRunnable("2"));
+        assertThat(posted.size(), is(1));
+        posted.remove(0).run();
+        assertThat(log, is("12"));
+    }
+
+    @Test
+    public void failing_runnable_reschedules_remaining_runnables(){
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                throw new RuntimeException();
+            }
+        });
+        executor.execute(logRunnable("2"));
+        try {
+            posted.remove(0).run();
+        } catch ( RuntimeException ok ) {}
+        assertThat(posted.size(), is(1));
+        posted.remove(0).run();
+        assertThat(log, is("2"));
+    }
+
+    @Test
+    public void rejected_runnable_is_not_run_by_a_later_drain(){
+        final boolean[] reject = new boolean[]{true};
+        executor = new BatchingExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                if ( reject[0] ) throw new RejectedExecutionException();
+                posted.add(runnable);
+            }
+        });
+        try {
+            executor.execute(logRunnable("1"));
+        } catch ( RejectedExecutionException ok ) {}
+        reject[0] = false;
+        executor.execute(logRunnable("2"));
+        posted.remove(0).run();
+        assertThat(log, is("2"));
+    }
+
+    private Runnable logRunnable(final String entry){
+        return new Runnable() {
+            @Override
+            public void run() {
+                log += entry;
+            }
+        };
+    }
+}
@@ -0,0 +1,93 @@
+package com.threeplay.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class CompletableFuturesTest {
+
+    private final Promise.Defer<Integer> defer = Promise.defer();
+
+    @Test
+    public void future_completes_with_the_promise_result() throws Exception {
+        CompletableFuture<Integer> future = CompletableFutures.toCompletableFuture(defer.promise);
+        assertThat(future.isDone(), is(false));
+        defer.resolveWithResult(2);
+        assertThat(future.get(), is(2));
+    }
+
+    @Test
+    public void future_fails_with_the_promise_exception() throws Exception {
+        CompletableFuture<Integer> future = CompletableFutures.toCompletableFuture(defer.promise);
+        IOException e = new IOException();
+        defer.rejectWithException(e);
+        try {
+            future.get();
+            throw new AssertionError("expected an ExecutionException");
+        } catch ( ExecutionException ok ) {
+            assertThat(ok.getCause(), is((Throwable)e));
+        }
+    }
+
+    @Test
+    public void canceled_promise_cancels_the_future(){
+        CompletableFuture<Integer> future = CompletableFutures.toCompletableFuture(defer.promise);
+        defer.promise.cancel();
+        assertThat(future.isCancelled(), is(true));
+    }
+
+    @Test
+    public void canceling_the_future_cancels_the_promise(){
+        CompletableFuture<Integer> future = CompletableFutures.toCompletableFuture(defer.promise);
+        future.cancel(true);
+        assertThat(defer.isCanceled(), is(true));
+    }
+
+    @Test
+    public void promise_resolves_with_the_stage_result(){
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        Promise<Integer> p = CompletableFutures.fromCompletionStage(future.thenApply(new Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer value) {
+                return value + 1;
+            }
+        }));
+        future.complete(1);
+        assertThat(p.getResult(), is(2));
+    }
+
+    @Test
+    public void promise_is_rejected_with_the_unwrapped_stage_exception(){
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        Promise<Integer> p = CompletableFutures.fromCompletionStage(future.thenApply(new Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer value) {
+                return value;
+            }
+        }));
+        IOException e = new IOException();
+        future.completeExceptionally(e);
+        assertThat(p.getException(), is((Exception)e));
+    }
+
+    @Test
+    public void canceled_future_cancels_the_promise(){
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        Promise<Integer> p = CompletableFutures.fromCompletionStage(future);
+        future.cancel(true);
+        assertThat(p.isCanceled(), is(true));
+    }
+
+    @Test
+    public void canceling_the_promise_cancels_the_future(){
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        CompletableFutures.fromCompletionStage(future).cancel();
+        assertThat(future.isCancelled(), is(true));
+    }
+}
@@ -0,0 +1,167 @@
+package com.threeplay.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class DurableJobQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static class UploadJob implements JobQueue.Job<String> {
+        private final String name;
+
+        UploadJob(String name){
+            this.name = name;
+        }
+
+        @Override
+        public void onQueued() {
+        }
+
+        @Override
+        public void onCanceled() {
+        }
+
+        @Override
+        public String onExecute() throws Exception {
+            if ( name.startsWith("fail") ) throw new Exception(name);
+            return name;
+        }
+    }
+
+    static class UploadSerializer implements DurableJobQueue.Serializer<String> {
+        @Override
+        public byte[] serialize(JobQueue.Job<String> job) throws IOException {
+            return job instanceof UploadJob ? ((UploadJob)job).name.getBytes("UTF-8") : null;
+        }
+
+        @Override
+        public JobQueue.Job<String> deserialize(byte[] data) throws IOException {
+            String name = new String(data, "UTF-8");
+            if ( name.startsWith("corrupt") ) throw new IllegalArgumentException(name);
+            return new UploadJob(name);
+        }
+    }
+
+    private DurableJobQueue<String> open() throws IOException {
+        JobJournal journal = JobJournal.open(new File(folder.getRoot(), "uploads.journal"));
+        return new DurableJobQueue<>(journal, new UploadSerializer(), new JobQueue.Policy(1));
+    }
+
+    @Test
+    public void pending_jobs_survive_reopening_the_queue() throws Exception {
+        DurableJobQueue<String> queue = open();
+        queue.submit(new UploadJob("a"));
+        queue.submit(new UploadJob("b"), 5);
+        queue.getJournal().close();
+
+        DurableJobQueue<String> restored = open();
+        List<JobQueue.Handle<String>> handles = restored.restore();
+        assertThat(handles.size(), is(2));
+        assertThat(handles.get(1).getPriority(), is(5));
+        assertThat(restored.next(), is(true));
+        assertThat(handles.get(1).getPromise().getResult(), is("b"));
+        assertThat(restored.restore().size(), is(0));
+        restored.getJournal().close();
+    }
+
+    @Test
+    public void jobs_submitted_before_restore_are_not_restored() throws Exception {
+        DurableJobQueue<String> queue = open();
+        queue.submit(new UploadJob("a"));
+        queue.getJournal().close();
+
+        DurableJobQueue<String> restored = open();
+        restored.submit(new UploadJob("b"));
+        List<JobQueue.Handle<String>> handles = restored.restore();
+        assertThat(handles.size(), is(1));
+        assertThat(((UploadJob)handles.get(0).getJob()).name, is("a"));
+        assertThat(restored.next(), is(true));
+        assertThat(restored.next(), is(true));
+        assertThat(restored.next(), is(false));
+        restored.getJournal().close();
+    }
+
+    @Test
+    public void jobs_failing_to_deserialize_are_dropped_and_the_others_restored() throws Exception {
+        DurableJobQueue<String> queue = open();
+        queue.submit(new UploadJob("a"));
+        queue.submit(new UploadJob("corrupt"));
+        queue.submit(new UploadJob("b"));
+        queue.getJournal().close();
+
+        DurableJobQueue<String> restored = open();
+        List<JobQueue.Handle<String>> handles = restored.restore();
+        assertThat(handles.size(), is(2));
+        assertThat(((UploadJob)handles.get(1).getJob()).name, is("b"));
+        assertThat(restored.getJournal().pending().size(), is(2));
+        restored.getJournal().close();
+    }
+
+    @Test
+    public void finished_and_canceled_jobs_leave_the_journal() throws Exception {
+        DurableJobQueue<String> queue = open();
+        queue.submit(new UploadJob("done"));
+        queue.submit(new UploadJob("fail"));
+        JobQueue.Handle<String> canceled = queue.submit(new UploadJob("canceled"), 0);
+        queue.submit(new UploadJob("pending"), -1);
+        canceled.cancel();
+        assertThat(queue.next(), is(true));
+        assertThat(queue.next(), is(true));
+        queue.flush().join(1, TimeUnit.SECONDS);
+        queue.getJournal().close();
+
+        DurableJobQueue<String> restored = open();
+        List<JobQueue.Handle<String>> handles = restored.restore();
+        assertThat(handles.size(), is(1));
+        assertThat(((UploadJob)handles.get(0).getJob()).name, is("pending"));
+        restored.getJournal().close();
+    }
+
+    @Test
+    public void canceling_a_downstream_promise_cancels_the_job() throws Exception {
+        DurableJobQueue<String> queue = open();
+        Promise<Integer> length = queue.submit(new UploadJob("a")).then(new Promise.Convert<String, Integer>() {
+            @Override
+            public void convert(Promise.Defer<Integer> defer, String result) throws Exception {
+                defer.resolveWithResult(result.length());
+            }
+        });
+        assertThat(length.cancel(), is(true));
+        assertThat(queue.next(), is(false));
+        assertThat(queue.getJournal().pending().size(), is(0));
+        queue.getJournal().close();
+    }
+
+    @Test
+    public void jobs_serialized_as_null_are_not_journaled() throws Exception {
+        DurableJobQueue<String> queue = open();
+        queue.submit(new JobQueue.Job<String>() {
+            @Override
+            public void onQueued() {
+            }
+
+            @Override
+            public void onCanceled() {
+            }
+
+            @Override
+            public String onExecute() throws Exception {
+                return "transient";
+            }
+        });
+        assertThat(queue.getJournal().pending().size(), is(0));
+        assertThat(queue.next(), is(true));
+        queue.getJournal().close();
+    }
+}
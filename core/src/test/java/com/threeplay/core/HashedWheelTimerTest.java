@@ -0,0 +1,142 @@
+package com.threeplay.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class HashedWheelTimerTest {
+
+    private HashedWheelTimer timer;
+
+    @Before
+    public void setup(){
+        timer = new HashedWheelTimer("test", 1, TimeUnit.MILLISECONDS, 8);
+    }
+
+    @After
+    public void teardown(){
+        timer.stop();
+    }
+
+    @Test
+    public void task_runs_after_its_delay() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        HashedWheelTimer.Timeout timeout = timer.schedule(countDown(latch), 20, TimeUnit.MILLISECONDS);
+        assertThat(latch.await(1, TimeUnit.SECONDS), is(true));
+        assertThat(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20), is(true));
+        assertThat(timeout.isExpired(), is(true));
+        assertThat(timer.pendingTimeouts(), is(0));
+    }
+
+    @Test
+    public void tasks_beyond_one_wheel_rotation_wait_for_their_round() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        timer.schedule(countDown(latch), 30, TimeUnit.MILLISECONDS);
+        assertThat(latch.await(1, TimeUnit.SECONDS), is(true));
+        assertThat(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(30), is(true));
+    }
+
+    @Test
+    public void canceled_task_does_not_run() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        HashedWheelTimer.Timeout timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+        assertThat(timeout.cancel(), is(true));
+        assertThat(timeout.cancel(), is(false));
+        assertThat(timer.pendingTimeouts(), is(0));
+        Thread.sleep(30);
+        assertThat(runs.get(), is(0));
+    }
+
+    @Test
+    public void timer_resumes_after_idling() throws Exception {
+        final CountDownLatch first = new CountDownLatch(1);
+        timer.schedule(countDown(first), 1, TimeUnit.MILLISECONDS);
+        assertThat(first.await(1, TimeUnit.SECONDS), is(true));
+        Thread.sleep(20);
+        final CountDownLatch second = new CountDownLatch(1);
+        timer.schedule(countDown(second), 1, TimeUnit.MILLISECONDS);
+        assertThat(second.await(1, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void many_tasks_scheduled_concurrently_all_run() throws Exception {
+        final int count = 1000;
+        final CountDownLatch latch = new CountDownLatch(count);
+        Thread[] threads = new Thread[4];
+        for ( int t = 0; t < threads.length; t++ ) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for ( int i = 0; i < count / 4; i++ ) {
+                        timer.schedule(countDown(latch), i % 20, TimeUnit.MILLISECONDS);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for ( Thread thread: threads ) {
+            thread.join();
+        }
+        assertThat(latch.await(2, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void task_throwing_an_error_does_not_stop_the_timer() throws Exception {
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                throw new AssertionError("task failed");
+            }
+        }, 1, TimeUnit.MILLISECONDS);
+        final CountDownLatch latch = new CountDownLatch(1);
+        timer.schedule(countDown(latch), 5, TimeUnit.MILLISECONDS);
+        assertThat(latch.await(1, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void stopped_timer_drops_pending_tasks() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+        timer.stop();
+        Thread.sleep(30);
+        assertThat(runs.get(), is(0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void stopped_timer_rejects_new_tasks() throws Exception {
+        timer.stop();
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 1, TimeUnit.MILLISECONDS);
+    }
+
+    private static Runnable countDown(final CountDownLatch latch){
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+}
@@ -0,0 +1,234 @@
+package com.threeplay.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+public class JobJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file() {
+        return new File(folder.getRoot(), "jobs.journal");
+    }
+
+    /**
+     * Channel writing only part of the next write before failing it, like a disk filling up.
+     */
+    static class TearingChannel extends FileChannel {
+        private final FileChannel channel;
+        private boolean tear = true;
+
+        TearingChannel(FileChannel channel){
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if ( tear ) {
+                tear = false;
+                ByteBuffer half = src.duplicate();
+                half.limit(src.position() + src.remaining() / 2);
+                channel.write(half);
+                throw new IOException("No space left on device");
+            }
+            return channel.write(src);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void failed_write_is_retried_without_leaving_a_torn_record() throws Exception {
+        JobJournal journal = JobJournal.open(file());
+        journal.append(0, "first".getBytes());
+        journal.flush().join(1, TimeUnit.SECONDS);
+        Field channel = JobJournal.class.getDeclaredField("channel");
+        channel.setAccessible(true);
+        Promise<Void> flushed;
+        synchronized ( journal ) {
+            channel.set(journal, new TearingChannel((FileChannel)channel.get(journal)));
+            journal.append(0, "second".getBytes());
+            flushed = journal.flush();
+        }
+        try {
+            flushed.join(1, TimeUnit.SECONDS);
+            throw new AssertionError("expected the flush to fail");
+        } catch ( IOException e ) {
+            assertThat(e.getMessage(), is("No space left on device"));
+        }
+        journal.append(0, "third".getBytes());
+        journal.flush().join(1, TimeUnit.SECONDS);
+        journal.close();
+
+        JobJournal reopened = JobJournal.open(file());
+        List<JobJournal.Entry> pending = reopened.pending();
+        assertThat(pending.size(), is(3));
+        assertThat(new String(pending.get(1).getData()), is("second"));
+        assertThat(new String(pending.get(2).getData()), is("third"));
+        reopened.close();
+    }
+
+    @Test
+    public void pending_jobs_replay_after_reopening() throws Exception {
+        JobJournal journal = JobJournal.open(file());
+        long first = journal.append(1, "first".getBytes());
+        journal.append(2, "second".getBytes());
+        journal.remove(first);
+        journal.close();
+
+        JobJournal reopened = JobJournal.open(file());
+        List<JobJournal.Entry> pending = reopened.pending();
+        assertThat(pending.size(), is(1));
+        assertThat(new String(pending.get(0).getData()), is("second"));
+        assertThat(pending.get(0).getPriority(), is(2));
+        long third = reopened.append(0, "third".getBytes());
+        assertThat(third > pending.get(0).getId(), is(true));
+        reopened.close();
+    }
+
+    @Test
+    public void flush_resolves_once_appends_are_written() throws Exception {
+        JobJournal journal = JobJournal.open(file());
+        for ( int i = 0; i < 1000; i++ ) {
+            journal.append(0, new byte[16]);
+        }
+        journal.flush().join(5, TimeUnit.SECONDS);
+        assertThat(file().length(), is(4L + 1000 * (21 + 16)));
+        journal.close();
+    }
+
+    @Test
+    public void damaged_tail_is_dropped() throws Exception {
+        JobJournal journal = JobJournal.open(file());
+        journal.append(0, "kept".getBytes());
+        journal.append(0, "torn".getBytes());
+        journal.close();
+        RandomAccessFile raw = new RandomAccessFile(file(), "rw");
+        raw.setLength(raw.length() - 2);
+        raw.close();
+
+        JobJournal reopened = JobJournal.open(file());
+        assertThat(reopened.pending().size(), is(1));
+        assertThat(new String(reopened.pending().get(0).getData()), is("kept"));
+        assertThat(file().length(), is(4L + 21 + 4));
+        reopened.close();
+    }
+
+    @Test
+    public void removed_jobs_are_compacted_away() throws Exception {
+        JobJournal journal = JobJournal.open(file());
+        for ( int i = 0; i < 3000; i++ ) {
+            long id = journal.append(0, new byte[32]);
+            if ( i % 100 != 0 ) {
+                journal.remove(id);
+            }
+        }
+        journal.flush().join(5, TimeUnit.SECONDS);
+        journal.append(0, new byte[32]);
+        journal.close();
+        assertThat(file().length(), lessThan(3000L * (21 + 32) / 2));
+
+        JobJournal reopened = JobJournal.open(file());
+        assertThat(reopened.pending().size(), is(31));
+        reopened.close();
+    }
+}
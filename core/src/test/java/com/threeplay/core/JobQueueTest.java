@@ -4,7 +4,16 @@ import org.hamcrest.Matchers;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -123,6 +132,36 @@ public class JobQueueTest {
         assertThat(p.getException().getMessage(), is("test"));
     }
 
+    @Test
+    public void job_submitted_twice_can_be_canceled_after_its_first_copy_ran(){
+        MockJob job = new MockJob();
+        Promise<Boolean> first = jobQueue.submit(job);
+        Promise<Boolean> second = jobQueue.submit(job);
+        Promise<Boolean> third = jobQueue.submit(job);
+        assertThat(jobQueue.next(), is(true));
+        assertThat(first.getResult(), is(true));
+        assertThat(jobQueue.cancel(job), is(true));
+        assertThat(second.isCanceled(), is(true));
+        assertThat(jobQueue.cancel(job), is(true));
+        assertThat(third.isCanceled(), is(true));
+        assertThat(jobQueue.cancel(job), is(false));
+        assertThat(jobQueue.next(), is(false));
+    }
+
+    @Test
+    public void canceling_a_later_copy_of_a_job_keeps_the_others_indexed(){
+        MockJob job = new MockJob();
+        JobQueue.Handle<Boolean> first = jobQueue.submit(job, 0);
+        JobQueue.Handle<Boolean> second = jobQueue.submit(job, 0);
+        JobQueue.Handle<Boolean> third = jobQueue.submit(job, 0);
+        assertThat(second.cancel(), is(true));
+        assertThat(jobQueue.cancel(job), is(true));
+        assertThat(first.getPromise().isCanceled(), is(true));
+        assertThat(jobQueue.cancel(job), is(true));
+        assertThat(third.getPromise().isCanceled(), is(true));
+        assertThat(jobQueue.cancel(job), is(false));
+    }
+
     @Test
     public void cannot_cancel_a_job_not_in_the_queue(){
         MockJob job = new MockJob();
@@ -156,4 +195,713 @@ public class JobQueueTest {
         assertThat(wasCanceled, is(false));
         assertThat(wasTriggeredAfter, is(true));
     }
+
+    static class BlockingJob implements JobQueue.Job<Boolean> {
+        private final CountDownLatch release;
+        private final AtomicInteger running;
+        private final AtomicInteger maximumRunning;
+
+        BlockingJob(CountDownLatch release, AtomicInteger running, AtomicInteger maximumRunning){
+            this.release = release;
+            this.running = running;
+            this.maximumRunning = maximumRunning;
+        }
+
+        @Override
+        public void onQueued() {
+        }
+
+        @Override
+        public void onCanceled() {
+        }
+
+        @Override
+        public Boolean onExecute() throws Exception {
+            int now = running.incrementAndGet();
+            while ( true ) {
+                int max = maximumRunning.get();
+                if ( now <= max || maximumRunning.compareAndSet(max, now) ) break;
+            }
+            release.await();
+            running.decrementAndGet();
+            return true;
+        }
+    }
+
+    @Test
+    public void started_queue_runs_jobs_up_to_the_policy_concurrency() throws Exception {
+        JobQueue<Boolean> queue = new JobQueue<>(new JobQueue.Policy(3));
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger(), maximumRunning = new AtomicInteger();
+        for ( int i = 0; i < 10; i++ ) {
+            queue.submit(new BlockingJob(release, running, maximumRunning));
+        }
+        queue.start();
+        while ( running.get() < 3 ) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(20);
+        assertThat(running.get(), is(3));
+        release.countDown();
+        queue.drain().join(1, TimeUnit.SECONDS);
+        assertThat(maximumRunning.get(), is(3));
+        assertThat(queue.isRunning(), is(false));
+        queue.shutdown();
+    }
+
+    @Test
+    public void jobs_are_not_run_before_the_queue_is_started() throws Exception {
+        JobQueue<Boolean> queue = new JobQueue<>(new JobQueue.Policy(2));
+        Promise<Boolean> p = queue.submit(new MockJob());
+        Thread.sleep(20);
+        assertThat(p.wasTriggered(), is(false));
+        queue.start();
+        assertThat(p.join(1, TimeUnit.SECONDS), is(true));
+        queue.shutdown();
+    }
+
+    @Test
+    public void drain_resolves_once_every_queued_job_finished() throws Exception {
+        JobQueue<Boolean> queue = new JobQueue<>(new JobQueue.Policy(4));
+        List<Promise<Boolean>> promises = new LinkedList<>();
+        for ( int i = 0; i < 50; i++ ) {
+            promises.add(queue.submit(new MockJob()));
+        }
+        queue.drain().join(1, TimeUnit.SECONDS);
+        for ( Promise<Boolean> p: promises ) {
+            assertThat(p.wasTriggered(), is(true));
+        }
+        queue.shutdown();
+    }
+
+    @Test
+    public void stop_leaves_jobs_queued_until_started_again() throws Exception {
+        JobQueue<Boolean> queue = new JobQueue<>(new JobQueue.Policy(1));
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger(), maximumRunning = new AtomicInteger();
+        Promise<Boolean> first = queue.submit(new BlockingJob(release, running, maximumRunning));
+        Promise<Boolean> second = queue.submit(new MockJob());
+        queue.start();
+        while ( running.get() < 1 ) {
+            Thread.sleep(1);
+        }
+        Promise<Void> stopped = queue.stop();
+        assertThat(stopped.wasTriggered(), is(false));
+        release.countDown();
+        stopped.join(1, TimeUnit.SECONDS);
+        assertThat(first.wasTriggered(), is(true));
+        assertThat(second.wasTriggered(), is(false));
+        queue.start();
+        assertThat(second.join(1, TimeUnit.SECONDS), is(true));
+        queue.shutdown();
+    }
+
+    @Test
+    public void manager_returns_registered_queues_by_name(){
+        JobQueue.Manager manager = new JobQueue.Manager(2);
+        manager.registerQueue("network", new JobQueue.Policy(2));
+        assertThat(manager.<Boolean>getQueue("network").isRunning(), is(true));
+        assertThat(manager.getQueue("disk"), is(nullValue()));
+        manager.shutdown();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void manager_rejects_registering_a_name_twice(){
+        JobQueue.Manager manager = new JobQueue.Manager(1);
+        manager.registerQueue("network", new JobQueue.Policy(1));
+        manager.registerQueue("network", new JobQueue.Policy(1));
+    }
+
+    @Test
+    public void manager_queues_share_its_thread_budget() throws Exception {
+        JobQueue.Manager manager = new JobQueue.Manager(3);
+        manager.registerQueue("network", new JobQueue.Policy(3));
+        manager.registerQueue("decode", new JobQueue.Policy(3));
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger(), maximumRunning = new AtomicInteger();
+        List<Promise<Boolean>> promises = new LinkedList<>();
+        for ( int i = 0; i < 6; i++ ) {
+            promises.add(manager.<Boolean>getQueue("network").submit(new BlockingJob(release, running, maximumRunning)));
+            promises.add(manager.<Boolean>getQueue("decode").submit(new BlockingJob(release, running, maximumRunning)));
+        }
+        while ( running.get() < 3 ) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(20);
+        assertThat(running.get(), is(3));
+        release.countDown();
+        for ( Promise<Boolean> p: promises ) {
+            assertThat(p.join(1, TimeUnit.SECONDS), is(true));
+        }
+        assertThat(maximumRunning.get(), is(3));
+        manager.shutdown().join(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void idle_queue_capacity_is_lent_to_busy_queues() throws Exception {
+        JobQueue.Manager manager = new JobQueue.Manager(4);
+        manager.registerQueue("network", new JobQueue.Policy(4));
+        manager.registerQueue("decode", new JobQueue.Policy(2));
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger(), maximumRunning = new AtomicInteger();
+        for ( int i = 0; i < 8; i++ ) {
+            manager.<Boolean>getQueue("network").submit(new BlockingJob(release, running, maximumRunning));
+        }
+        while ( running.get() < 4 ) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        manager.shutdown().join(1, TimeUnit.SECONDS);
+        assertThat(maximumRunning.get(), is(4));
+    }
+
+    static class NamedJob implements JobQueue.Job<Boolean> {
+        private final String name;
+        private final StringBuilder log;
+
+        NamedJob(String name, StringBuilder log){
+            this.name = name;
+            this.log = log;
+        }
+
+        @Override
+        public void onQueued() {
+        }
+
+        @Override
+        public void onCanceled() {
+        }
+
+        @Override
+        public Boolean onExecute() throws Exception {
+            log.append(name);
+            return true;
+        }
+    }
+
+    private static void runAll(JobQueue<Boolean> queue){
+        while ( queue.next() ) {
+        }
+    }
+
+    @Test
+    public void jobs_of_equal_priority_run_in_submission_order(){
+        StringBuilder log = new StringBuilder();
+        for ( String name: new String[]{"a", "b", "c", "d"} ) {
+            jobQueue.submit(new NamedJob(name, log));
+        }
+        runAll(jobQueue);
+        assertThat(log.toString(), is("abcd"));
+    }
+
+    @Test
+    public void higher_priority_jobs_overtake_queued_ones(){
+        StringBuilder log = new StringBuilder();
+        jobQueue.submit(new NamedJob("a", log), -1);
+        jobQueue.submit(new NamedJob("b", log));
+        jobQueue.submit(new NamedJob("c", log), 5);
+        jobQueue.submit(new NamedJob("d", log), 1);
+        runAll(jobQueue);
+        assertThat(log.toString(), is("cdba"));
+    }
+
+    @Test
+    public void reprioritized_job_moves_in_the_queue(){
+        StringBuilder log = new StringBuilder();
+        jobQueue.submit(new NamedJob("a", log));
+        jobQueue.submit(new NamedJob("b", log));
+        JobQueue.Handle<Boolean> c = jobQueue.submit(new NamedJob("c", log), -1);
+        JobQueue.Handle<Boolean> d = jobQueue.submit(new NamedJob("d", log), 2);
+        assertThat(c.setPriority(3), is(true));
+        assertThat(d.setPriority(-2), is(true));
+        assertThat(c.getPriority(), is(3));
+        runAll(jobQueue);
+        assertThat(log.toString(), is("cabd"));
+        assertThat(c.setPriority(0), is(false));
+        assertThat(c.getPromise().wasTriggered(), is(true));
+    }
+
+    @Test
+    public void waiting_jobs_age_past_newer_higher_priority_jobs() throws Exception {
+        JobQueue<Boolean> queue = new JobQueue<>(new JobQueue.Policy(1, 10));
+        StringBuilder log = new StringBuilder();
+        queue.submit(new NamedJob("old", log), 0);
+        Thread.sleep(50);
+        queue.submit(new NamedJob("new", log), 2);
+        runAll(queue);
+        assertThat(log.toString(), is("oldnew"));
+    }
+
+    @Test
+    public void without_aging_priority_always_wins() throws Exception {
+        JobQueue<Boolean> queue = new JobQueue<>(new JobQueue.Policy(1, 0));
+        StringBuilder log = new StringBuilder();
+        queue.submit(new NamedJob("old", log), 0);
+        Thread.sleep(20);
+        queue.submit(new NamedJob("new", log), 1);
+        runAll(queue);
+        assertThat(log.toString(), is("newold"));
+    }
+
+    @Test
+    public void canceled_job_leaves_the_priority_order_intact(){
+        StringBuilder log = new StringBuilder();
+        NamedJob[] jobs = new NamedJob[20];
+        for ( int i = 0; i < jobs.length; i++ ) {
+            jobs[i] = new NamedJob(Character.toString((char)('a' + i)), log);
+            jobQueue.submit(jobs[i], i % 5);
+        }
+        jobQueue.cancel(jobs[9]);
+        jobQueue.cancel(jobs[0]);
+        runAll(jobQueue);
+        assertThat(log.toString(), is("eotdinschmrbglqfkp"));
+    }
+
+    @Test
+    public void canceling_a_handle_rejects_its_promise_with_a_cancellation_exception(){
+        MockJob job = new MockJob();
+        JobQueue.Handle<Boolean> handle = jobQueue.submit(job, 0);
+        assertThat(handle.cancel(), is(true));
+        assertThat(handle.cancel(), is(false));
+        assertThat(job.log, is("qc"));
+        assertThat(handle.getPromise().isCanceled(), is(true));
+        assertThat(handle.getPromise().getException() instanceof CancellationException, is(true));
+        assertThat(jobQueue.next(), is(false));
+    }
+
+    @Test
+    public void canceling_the_job_promise_removes_it_from_the_queue(){
+        MockJob job = new MockJob();
+        jobQueue.submit(job).cancel();
+        assertThat(job.log, is("qc"));
+        assertThat(jobQueue.next(), is(false));
+    }
+
+    @Test
+    public void cancelGroup_cancels_only_the_jobs_of_that_group(){
+        StringBuilder log = new StringBuilder();
+        jobQueue.submit(new NamedJob("a", log), 0, "prefetch");
+        jobQueue.submit(new NamedJob("b", log), 0, "visible");
+        jobQueue.submit(new NamedJob("c", log), 0, "prefetch");
+        jobQueue.submit(new NamedJob("d", log), 0);
+        assertThat(jobQueue.cancelGroup("prefetch"), is(2));
+        assertThat(jobQueue.cancelGroup("prefetch"), is(0));
+        runAll(jobQueue);
+        assertThat(log.toString(), is("bd"));
+    }
+
+    @Test
+    public void cancelAll_cancels_the_jobs_matching_the_predicate(){
+        StringBuilder log = new StringBuilder();
+        for ( int i = 0; i < 10; i++ ) {
+            jobQueue.submit(new NamedJob(Integer.toString(i), log), i % 2);
+        }
+        int canceled = jobQueue.cancelAll(new JobQueue.Predicate<Boolean>() {
+            @Override
+            public boolean matches(JobQueue.Handle<Boolean> handle) {
+                return handle.getPriority() == 0;
+            }
+        });
+        assertThat(canceled, is(5));
+        runAll(jobQueue);
+        assertThat(log.toString(), is("13579"));
+    }
+
+    @Test
+    public void bulk_cancellation_keeps_the_remaining_order(){
+        StringBuilder log = new StringBuilder();
+        List<JobQueue.Handle<Boolean>> handles = new LinkedList<>();
+        for ( int i = 0; i < 1000; i++ ) {
+            handles.add(jobQueue.submit(new NamedJob(i % 100 == 0 ? "[" + i + "]" : "", log), i % 7));
+        }
+        for ( JobQueue.Handle<Boolean> handle: handles ) {
+            if ( ((NamedJob)handle.getJob()).name.isEmpty() ) {
+                handle.cancel();
+            }
+        }
+        runAll(jobQueue);
+        assertThat(log.toString(), is("[300][600][200][900][500][100][800][400][0][700]"));
+    }
+
+    static class KeyedJob extends NamedJob implements JobQueue.KeyedJob<Boolean> {
+        private final String key;
+
+        KeyedJob(String key, StringBuilder log){
+            super(key, log);
+            this.key = key;
+        }
+
+        @Override
+        public Object getJobKey() {
+            return key;
+        }
+    }
+
+    @Test
+    public void keyed_submissions_attach_to_the_queued_job(){
+        StringBuilder log = new StringBuilder();
+        Promise<Boolean> first = jobQueue.submit(new KeyedJob("url", log));
+        Promise<Boolean> second = jobQueue.submit(new KeyedJob("url", log));
+        jobQueue.submit(new KeyedJob("other", log));
+        runAll(jobQueue);
+        assertThat(log.toString(), is("urlother"));
+        assertThat(first.getResult(), is(true));
+        assertThat(second.getResult(), is(true));
+    }
+
+    @Test
+    public void keyed_submission_attaches_to_an_executing_job() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+        final AtomicInteger executions = new AtomicInteger();
+        JobQueue.KeyedJob<Boolean> job = new JobQueue.KeyedJob<Boolean>() {
+            @Override
+            public Object getJobKey() {
+                return "decode";
+            }
+
+            @Override
+            public void onQueued() {
+            }
+
+            @Override
+            public void onCanceled() {
+            }
+
+            @Override
+            public Boolean onExecute() throws Exception {
+                executions.incrementAndGet();
+                started.countDown();
+                release.await();
+                return true;
+            }
+        };
+        JobQueue<Boolean> queue = new JobQueue<>(new JobQueue.Policy(2));
+        queue.start();
+        Promise<Boolean> first = queue.submit(job);
+        started.await(1, TimeUnit.SECONDS);
+        Promise<Boolean> second = queue.submit(job);
+        release.countDown();
+        assertThat(first.join(1, TimeUnit.SECONDS), is(true));
+        assertThat(second.join(1, TimeUnit.SECONDS), is(true));
+        assertThat(executions.get(), is(1));
+        Promise<Boolean> third = queue.submit(job);
+        assertThat(third.join(1, TimeUnit.SECONDS), is(true));
+        assertThat(executions.get(), is(2));
+        queue.shutdown();
+    }
+
+    @Test
+    public void keyed_job_is_canceled_once_every_submitter_canceled(){
+        StringBuilder log = new StringBuilder();
+        JobQueue.Handle<Boolean> first = jobQueue.submit(new KeyedJob("url", log), 0);
+        JobQueue.Handle<Boolean> second = jobQueue.submit(new KeyedJob("url", log), 0);
+        first.cancel();
+        assertThat(second.getPromise().wasTriggered(), is(false));
+        second.cancel();
+        assertThat(jobQueue.next(), is(false));
+        jobQueue.submit(new KeyedJob("url", log));
+        runAll(jobQueue);
+        assertThat(log.toString(), is("url"));
+    }
+
+    @Test
+    public void keyed_handle_cannot_cancel_an_executing_job() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+        JobQueue<Boolean> queue = new JobQueue<>(new JobQueue.Policy(1));
+        queue.start();
+        JobQueue.Handle<Boolean> handle = queue.submit(new KeyedJob("url", new StringBuilder()) {
+            @Override
+            public Boolean onExecute() throws Exception {
+                started.countDown();
+                release.await();
+                return super.onExecute();
+            }
+        }, 0);
+        assertThat(started.await(1, TimeUnit.SECONDS), is(true));
+        assertThat(handle.cancel(), is(false));
+        release.countDown();
+        assertThat(handle.getPromise().join(1, TimeUnit.SECONDS), is(true));
+        queue.shutdown();
+    }
+
+    @Test
+    public void attaching_with_a_higher_priority_raises_the_queued_job(){
+        StringBuilder log = new StringBuilder();
+        jobQueue.submit(new KeyedJob("a", log), 0);
+        jobQueue.submit(new KeyedJob("b", log), 1);
+        JobQueue.Handle<Boolean> handle = jobQueue.submit(new KeyedJob("a", log), 5);
+        assertThat(handle.getPriority(), is(5));
+        runAll(jobQueue);
+        assertThat(log.toString(), is("ab"));
+    }
+
+    static class BatchedJob extends NamedJob implements JobQueue.BatchJob<Boolean> {
+        private final StringBuilder log;
+        private final int maximumSize;
+        private final long maximumDelay;
+        private Exception exception;
+
+        BatchedJob(String name, StringBuilder log, int maximumSize, long maximumDelay){
+            super(name, log);
+            this.log = log;
+            this.maximumSize = maximumSize;
+            this.maximumDelay = maximumDelay;
+        }
+
+        @Override
+        public Object getBatchKey() {
+            return "batch";
+        }
+
+        @Override
+        public int getMaximumBatchSize() {
+            return maximumSize;
+        }
+
+        @Override
+        public long getMaximumBatchDelayMillis() {
+            return maximumDelay;
+        }
+
+        @Override
+        public List<Boolean> onExecuteBatch(List<JobQueue.BatchJob<Boolean>> batch) throws Exception {
+            if ( exception != null ) throw exception;
+            List<Boolean> results = new LinkedList<>();
+            log.append("[");
+            for ( JobQueue.BatchJob<Boolean> job: batch ) {
+                results.add(job.onExecute());
+            }
+            log.append("]");
+            return results;
+        }
+    }
+
+    @Test
+    public void full_batch_runs_as_a_single_job(){
+        StringBuilder log = new StringBuilder();
+        Promise<Boolean> a = jobQueue.submit(new BatchedJob("a", log, 3, 1000));
+        Promise<Boolean> b = jobQueue.submit(new BatchedJob("b", log, 3, 1000));
+        assertThat(jobQueue.next(), is(false));
+        Promise<Boolean> c = jobQueue.submit(new BatchedJob("c", log, 3, 1000));
+        assertThat(jobQueue.next(), is(true));
+        assertThat(jobQueue.next(), is(false));
+        assertThat(log.toString(), is("[abc]"));
+        assertThat(a.getResult(), is(true));
+        assertThat(b.getResult(), is(true));
+        assertThat(c.getResult(), is(true));
+    }
+
+    @Test
+    public void batch_is_queued_once_its_delay_passes() throws Exception {
+        StringBuilder log = new StringBuilder();
+        JobQueue<Boolean> queue = new JobQueue<>(new JobQueue.Policy(1));
+        queue.start();
+        Promise<Boolean> a = queue.submit(new BatchedJob("a", log, 10, 50));
+        Promise<Boolean> b = queue.submit(new BatchedJob("b", log, 10, 50));
+        assertThat(b.join(1, TimeUnit.SECONDS), is(true));
+        assertThat(a.getResult(), is(true));
+        assertThat(log.toString(), is("[ab]"));
+        queue.shutdown();
+    }
+
+    @Test
+    public void failed_batch_rejects_every_job(){
+        StringBuilder log = new StringBuilder();
+        BatchedJob first = new BatchedJob("a", log, 2, 1000);
+        first.exception = new Exception("test");
+        Promise<Boolean> a = jobQueue.submit(first);
+        Promise<Boolean> b = jobQueue.submit(new BatchedJob("b", log, 2, 1000));
+        runAll(jobQueue);
+        assertThat(a.getException().getMessage(), is("test"));
+        assertThat(b.getException().getMessage(), is("test"));
+    }
+
+    @Test
+    public void canceled_job_leaves_the_batch(){
+        StringBuilder log = new StringBuilder();
+        JobQueue.Handle<Boolean> a = jobQueue.submit(new BatchedJob("a", log, 3, 1000), 0);
+        JobQueue.Handle<Boolean> b = jobQueue.submit(new BatchedJob("b", log, 3, 1000), 0);
+        assertThat(a.cancel(), is(true));
+        jobQueue.submit(new BatchedJob("c", log, 3, 1000));
+        jobQueue.drain();
+        runAll(jobQueue);
+        assertThat(log.toString(), is("[bc]"));
+        assertThat(a.getPromise().getException(), Matchers.instanceOf(CancellationException.class));
+        assertThat(b.getPromise().getResult(), is(true));
+    }
+
+    @Test
+    public void batch_metrics_count_every_job(){
+        StringBuilder log = new StringBuilder();
+        jobQueue.submit(new BatchedJob("a", log, 2, 1000));
+        jobQueue.submit(new BatchedJob("b", log, 2, 1000));
+        BatchedJob failing = new BatchedJob("c", log, 2, 1000);
+        failing.exception = new Exception("test");
+        jobQueue.submit(failing);
+        jobQueue.submit(new BatchedJob("d", log, 2, 1000));
+        runAll(jobQueue);
+        JobQueue.Metrics metrics = jobQueue.getMetrics();
+        assertThat(metrics.getSubmitted(), is(4L));
+        assertThat(metrics.getCompleted(), is(2L));
+        assertThat(metrics.getFailed(), is(2L));
+        assertThat(metrics.getExecuting(), is(0));
+        assertThat(metrics.getWaitTime().getCount(), is(4L));
+        assertThat(metrics.getRunTime().getCount(), is(4L));
+    }
+
+    @Test
+    public void batch_throwing_an_error_rejects_every_job(){
+        StringBuilder log = new StringBuilder();
+        Promise<Boolean> a = jobQueue.submit(new BatchedJob("a", log, 2, 1000) {
+            @Override
+            public List<Boolean> onExecuteBatch(List<JobQueue.BatchJob<Boolean>> batch) throws Exception {
+                throw new AssertionError("batch failed");
+            }
+        });
+        Promise<Boolean> b = jobQueue.submit(new BatchedJob("b", log, 2, 1000));
+        try {
+            jobQueue.next();
+            throw new IllegalStateException("expected the error to reach the worker");
+        } catch ( AssertionError e ) {
+            assertThat(e.getMessage(), is("batch failed"));
+        }
+        assertThat(a.getException().getCause(), Matchers.instanceOf(AssertionError.class));
+        assertThat(b.getException().getCause(), Matchers.instanceOf(AssertionError.class));
+        assertThat(jobQueue.getMetrics().getFailed(), is(2L));
+    }
+
+    @Test
+    public void batch_of_a_single_job_runs_it_alone(){
+        StringBuilder log = new StringBuilder();
+        Promise<Boolean> a = jobQueue.submit(new BatchedJob("a", log, 3, 0));
+        runAll(jobQueue);
+        assertThat(log.toString(), is("a"));
+        assertThat(a.getResult(), is(true));
+    }
+
+    @Test
+    public void earliest_deadline_first_runs_jobs_by_deadline(){
+        StringBuilder log = new StringBuilder();
+        JobQueue<Boolean> queue = new JobQueue<>(new JobQueue.Policy(1, 0, true));
+        queue.submit(new NamedJob("n", log), 5);
+        queue.submit(new NamedJob("c", log), 0, null, 30000);
+        queue.submit(new NamedJob("a", log), 0, null, 10000);
+        queue.submit(new NamedJob("b", log), 0, null, 20000);
+        runAll(queue);
+        assertThat(log.toString(), is("abcn"));
+    }
+
+    @Test
+    public void job_waiting_past_its_deadline_is_dropped() throws Exception {
+        StringBuilder log = new StringBuilder();
+        final CountDownLatch canceled = new CountDownLatch(1);
+        JobQueue.Handle<Boolean> handle = jobQueue.submit(new NamedJob("a", log) {
+            @Override
+            public void onCanceled() {
+                canceled.countDown();
+            }
+        }, 0, null, 20);
+        assertThat(canceled.await(1, TimeUnit.SECONDS), is(true));
+        try {
+            handle.getPromise().join(1, TimeUnit.SECONDS);
+        } catch ( TimeoutException e ) {
+        }
+        assertThat(handle.getPromise().getException(), Matchers.instanceOf(TimeoutException.class));
+        assertThat(jobQueue.getExpiredDeadlines(), is(1L));
+        assertThat(jobQueue.next(), is(false));
+        assertThat(log.toString(), is(""));
+    }
+
+    @Test
+    public void job_finishing_past_its_deadline_counts_as_missed(){
+        StringBuilder log = new StringBuilder();
+        JobQueue.Handle<Boolean> handle = jobQueue.submit(new NamedJob("a", log) {
+            @Override
+            public Boolean onExecute() throws Exception {
+                Thread.sleep(100);
+                return super.onExecute();
+            }
+        }, 0, null, 50);
+        jobQueue.submit(new NamedJob("b", log), 0, null, 5000);
+        runAll(jobQueue);
+        assertThat(handle.getPromise().getResult(), is(true));
+        assertThat(jobQueue.getMissedDeadlines(), is(1L));
+        assertThat(jobQueue.getExpiredDeadlines(), is(0L));
+        assertThat(log.toString(), is("ab"));
+    }
+
+    @Test
+    public void metrics_count_jobs_by_outcome(){
+        MockJob failing = new MockJob();
+        failing.exception = new Exception("test");
+        jobQueue.submit(new MockJob());
+        jobQueue.submit(failing);
+        jobQueue.submit(new MockJob(), 0).cancel();
+        jobQueue.submit(new MockJob());
+        assertThat(jobQueue.getMetrics().getDepth(), is(3));
+        assertThat(jobQueue.next(), is(true));
+        assertThat(jobQueue.next(), is(true));
+        JobQueue.Metrics metrics = jobQueue.getMetrics();
+        assertThat(metrics.getDepth(), is(1));
+        assertThat(metrics.getSubmitted(), is(4L));
+        assertThat(metrics.getCompleted(), is(1L));
+        assertThat(metrics.getFailed(), is(1L));
+        assertThat(metrics.getCanceled(), is(1L));
+        assertThat(metrics.getWaitTime().getCount(), is(2L));
+        assertThat(metrics.getRunTime().getCount(), is(2L));
+    }
+
+    @Test
+    public void job_throwing_an_error_is_counted_and_keeps_the_worker_going(){
+        final List<Runnable> tasks = new LinkedList<>();
+        JobQueue<Boolean> queue = new JobQueue<>(new JobQueue.Policy(1), new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                tasks.add(runnable);
+            }
+        });
+        Promise<Boolean> failed = queue.submit(new MockJob() {
+            @Override
+            public Boolean onExecute() throws Exception {
+                throw new AssertionError("job failed");
+            }
+        });
+        Promise<Boolean> next = queue.submit(new MockJob());
+        queue.start();
+        int errors = 0;
+        while ( !tasks.isEmpty() ) {
+            try {
+                tasks.remove(0).run();
+            } catch ( AssertionError e ) {
+                errors++;
+            }
+        }
+        assertThat(errors, is(1));
+        assertThat(failed.getException(), Matchers.instanceOf(ExecutionException.class));
+        assertThat(failed.getException().getCause(), Matchers.instanceOf(AssertionError.class));
+        assertThat(next.wasSuccessful(), is(true));
+        JobQueue.Metrics metrics = queue.getMetrics();
+        assertThat(metrics.getExecuting(), is(0));
+        assertThat(metrics.getFailed(), is(1L));
+        assertThat(metrics.getCompleted(), is(1L));
+        assertThat(metrics.getRunTime().getCount(), is(2L));
+    }
+
+    @Test
+    public void metrics_listener_receives_snapshots() throws Exception {
+        final CountDownLatch reported = new CountDownLatch(2);
+        final AtomicReference<JobQueue.Metrics> last = new AtomicReference<>();
+        jobQueue.submit(new MockJob());
+        jobQueue.setMetricsListener(new JobQueue.MetricsListener() {
+            @Override
+            public void onMetrics(JobQueue<?> queue, JobQueue.Metrics metrics) {
+                last.set(metrics);
+                reported.countDown();
+            }
+        }, 10);
+        assertThat(reported.await(1, TimeUnit.SECONDS), is(true));
+        jobQueue.setMetricsListener(null, 0);
+        assertThat(last.get().getSubmitted(), is(1L));
+        assertThat(last.get().getDepth(), is(1));
+    }
 }
@@ -0,0 +1,51 @@
+package com.threeplay.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void empty_histogram_reports_zeros(){
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertThat(snapshot.getCount(), is(0L));
+        assertThat(snapshot.getMean(TimeUnit.NANOSECONDS), is(0L));
+        assertThat(snapshot.getPercentile(99, TimeUnit.NANOSECONDS), is(0L));
+    }
+
+    @Test
+    public void percentiles_are_within_bucket_precision(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        for ( int i = 1; i <= 1000; i++ ) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount(), is(1000L));
+        assertThat(snapshot.getMaximum(TimeUnit.MICROSECONDS), is(1000L));
+        assertThat(snapshot.getMean(TimeUnit.MICROSECONDS), is(500L));
+        long median = snapshot.getPercentile(50, TimeUnit.MICROSECONDS);
+        assertThat(median, greaterThanOrEqualTo(500L));
+        assertThat(median, lessThanOrEqualTo(563L));
+        long p99 = snapshot.getPercentile(99, TimeUnit.MICROSECONDS);
+        assertThat(p99, greaterThanOrEqualTo(990L));
+        assertThat(p99, lessThanOrEqualTo(1000L));
+    }
+
+    @Test
+    public void small_and_huge_values_are_recorded(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3);
+        histogram.record(Long.MAX_VALUE / 2);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getPercentile(50, TimeUnit.NANOSECONDS), is(3L));
+        assertThat(snapshot.getPercentile(100, TimeUnit.NANOSECONDS), is(Long.MAX_VALUE / 2));
+        histogram.reset();
+        assertThat(histogram.snapshot().getCount(), is(0L));
+    }
+}
@@ -0,0 +1,506 @@
+package com.threeplay.core;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Micro benchmarks for Promise, run manually with:
+ *   java -cp <test classpath> com.threeplay.core.PromiseBenchmark [threads]
+ *
+ * Numbers are indicative only, each scenario is warmed up once before being measured.
+ */
+public class PromiseBenchmark {
+
+    static abstract class Scenario {
+        abstract String name();
+        abstract long operations();
+        abstract void run() throws Exception;
+
+        /**
+         * Allocations are only tracked for the calling thread, scenarios running elsewhere don't report them.
+         */
+        boolean runsOnCallingThread() {
+            return true;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Math.max(4, Runtime.getRuntime().availableProcessors());
+        List<Scenario> scenarios = new LinkedList<>();
+        scenarios.add(new SharedPromiseContention(threads, 2000, 16));
+        scenarios.add(new ConcurrentCompletion(threads, 50000));
+        scenarios.add(new LongChain(10000, 20));
+        scenarios.add(new LongChain(100000, 2));
+        scenarios.add(new FanIn(5000, 100));
+        scenarios.add(new Pipeline(4, 100000));
+        scenarios.add(new Pipeline(6, 100000));
+        scenarios.add(new CompletableFuturePipeline(4, 100000));
+        scenarios.add(new CompletableFuturePipeline(6, 100000));
+        scenarios.add(new ExecutorHandOff(false, 20000));
+        scenarios.add(new ExecutorHandOff(true, 20000));
+        for ( Scenario scenario: scenarios ) {
+            measure(scenario);
+        }
+    }
+
+    static void measure(Scenario scenario) throws Exception {
+        scenario.run();
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        scenario.run();
+        long elapsed = System.nanoTime() - start;
+        allocated = allocatedBytes() - allocated;
+        String bytesPerOperation = scenario.runsOnCallingThread() && allocated >= 0
+                ? String.format("%8.1f B/op", (double)allocated / scenario.operations()) : "       - B/op";
+        System.out.println(String.format("%-40s %10.1f ms %12.0f ops/s %s",
+                scenario.name(), elapsed / 1e6, scenario.operations() * 1e9 / elapsed, bytesPerOperation));
+    }
+
+    /**
+     * Looked up by reflection, java.lang.management and com.sun.management aren't in android.jar which
+     * unit tests compile against.
+     * @return Bytes allocated by the calling thread so far, -1 when the JVM doesn't track them
+     */
+    static long allocatedBytes() {
+        try {
+            Object bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+            Method allocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long)allocatedBytes.invoke(bean, Thread.currentThread().getId());
+        } catch ( Exception e ) {
+            return -1;
+        }
+    }
+
+    static void runThreads(int count, final Runnable runnable) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new LinkedList<>();
+        while ( count-- > 0 ) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try { start.await(); } catch ( InterruptedException ok ) {}
+                    runnable.run();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for ( Thread thread: threads ) {
+            thread.join();
+        }
+    }
+
+    static Promise.Handler<Integer> countingHandler(final AtomicInteger counter) {
+        return new Promise.Handler<Integer>() {
+            @Override
+            public void trigger(Promise.Triggered<Integer> p) throws Exception {
+                counter.incrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Many threads attach handlers to the same promises while another thread resolves them.
+     */
+    static class SharedPromiseContention extends Scenario {
+        private final int threads, promises, handlersPerThread;
+
+        SharedPromiseContention(int threads, int promises, int handlersPerThread){
+            this.threads = threads;
+            this.promises = promises;
+            this.handlersPerThread = handlersPerThread;
+        }
+
+        @Override
+        boolean runsOnCallingThread() {
+            return false;
+        }
+
+        @Override
+        String name() {
+            return "shared promise contention (" + threads + " threads)";
+        }
+
+        @Override
+        long operations() {
+            return (long)threads * promises * handlersPerThread;
+        }
+
+        @Override
+        void run() throws Exception {
+            final List<Promise.Defer<Integer>> defers = new LinkedList<>();
+            for ( int i = 0; i < promises; i++ ) {
+                defers.add(Promise.<Integer>defer());
+            }
+            final AtomicInteger counter = new AtomicInteger();
+            final Promise.Handler<Integer> handler = countingHandler(counter);
+            Thread resolver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for ( Promise.Defer<Integer> defer: defers ) {
+                        defer.resolveWithResult(1);
+                    }
+                }
+            });
+            resolver.start();
+            runThreads(threads, new Runnable() {
+                @Override
+                public void run() {
+                    for ( Promise.Defer<Integer> defer: defers ) {
+                        for ( int i = 0; i < handlersPerThread; i++ ) {
+                            defer.promise.then(handler);
+                        }
+                    }
+                }
+            });
+            resolver.join();
+            if ( counter.get() != operations() ) {
+                throw new IllegalStateException("Expected " + operations() + " handlers, got " + counter.get());
+            }
+        }
+    }
+
+    /**
+     * Independent promises with a single handler each, resolved from many threads at once.
+     */
+    static class ConcurrentCompletion extends Scenario {
+        private final int threads, promisesPerThread;
+
+        ConcurrentCompletion(int threads, int promisesPerThread){
+            this.threads = threads;
+            this.promisesPerThread = promisesPerThread;
+        }
+
+        @Override
+        boolean runsOnCallingThread() {
+            return false;
+        }
+
+        @Override
+        String name() {
+            return "concurrent completion (" + threads + " threads)";
+        }
+
+        @Override
+        long operations() {
+            return (long)threads * promisesPerThread;
+        }
+
+        @Override
+        void run() throws Exception {
+            final AtomicInteger counter = new AtomicInteger();
+            final Promise.Handler<Integer> handler = countingHandler(counter);
+            runThreads(threads, new Runnable() {
+                @Override
+                public void run() {
+                    for ( int i = 0; i < promisesPerThread; i++ ) {
+                        Promise.Defer<Integer> defer = Promise.defer();
+                        defer.promise.then(handler);
+                        defer.resolveWithResult(i);
+                    }
+                }
+            });
+            if ( counter.get() != operations() ) {
+                throw new IllegalStateException("Expected " + operations() + " handlers, got " + counter.get());
+            }
+        }
+    }
+
+    /**
+     * Chains of synchronous then() stages resolved after they were built, on a thread with a 1MB stack
+     * like Android's background threads.
+     */
+    static class LongChain extends Scenario {
+        private final int stages, chains;
+
+        LongChain(int stages, int chains){
+            this.stages = stages;
+            this.chains = chains;
+        }
+
+        @Override
+        boolean runsOnCallingThread() {
+            return false;
+        }
+
+        @Override
+        String name() {
+            return stages + "-stage chains";
+        }
+
+        @Override
+        long operations() {
+            return (long)stages * chains;
+        }
+
+        @Override
+        void run() throws Exception {
+            final AtomicInteger counter = new AtomicInteger();
+            final Promise.Handler<Integer> handler = countingHandler(counter);
+            final Throwable[] failure = new Throwable[1];
+            Thread thread = new Thread(null, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for ( int c = 0; c < chains; c++ ) {
+                            Promise.Defer<Integer> defer = Promise.defer();
+                            Promise<Integer> promise = defer.promise;
+                            for ( int i = 0; i < stages; i++ ) {
+                                promise = promise.then(handler);
+                            }
+                            defer.resolveWithResult(c);
+                        }
+                    } catch ( Throwable e ) {
+                        failure[0] = e;
+                    }
+                }
+            }, "chain", 1024 * 1024);
+            thread.start();
+            thread.join();
+            if ( failure[0] != null ) {
+                throw new IllegalStateException("Chain failed", failure[0]);
+            }
+            if ( counter.get() != operations() ) {
+                throw new IllegalStateException("Expected " + operations() + " handlers, got " + counter.get());
+            }
+        }
+    }
+
+    /**
+     * Promise.fromList over many entries, each resolved later as fetch results would be.
+     */
+    static class FanIn extends Scenario {
+        private final int entries, rounds;
+
+        FanIn(int entries, int rounds){
+            this.entries = entries;
+            this.rounds = rounds;
+        }
+
+        @Override
+        String name() {
+            return "fromList fan-in of " + entries;
+        }
+
+        @Override
+        long operations() {
+            return (long)entries * rounds;
+        }
+
+        @Override
+        void run() throws Exception {
+            List<Integer> keys = new ArrayList<>();
+            for ( int i = 0; i < entries; i++ ) {
+                keys.add(i);
+            }
+            final AtomicInteger completed = new AtomicInteger();
+            for ( int r = 0; r < rounds; r++ ) {
+                final List<Promise.Defer<Integer>> defers = new ArrayList<>(entries);
+                Promise.fromList(keys, new Promise.ListDefer<Integer, Integer>() {
+                    @Override
+                    public void trigger(Promise.Defer<Integer> defer, Integer value) throws Exception {
+                        defers.add(defer);
+                    }
+                }).then(new Promise.Handler<List<Integer>>() {
+                    @Override
+                    public void trigger(Promise.Triggered<List<Integer>> p) throws Exception {
+                        completed.addAndGet(p.getResult().size());
+                    }
+                });
+                for ( int i = 0; i < entries; i++ ) {
+                    defers.get(i).resolveWithResult(i);
+                }
+            }
+            if ( completed.get() != operations() ) {
+                throw new IllegalStateException("Expected " + operations() + " results, got " + completed.get());
+            }
+        }
+    }
+
+    /**
+     * Short pipelines of synchronous Convert, PromiseRunnable and filter stages like
+     * fetch -> cache -> decode -> transform, built before the source resolves. Reports bytes per stage.
+     */
+    static class Pipeline extends Scenario {
+        private final int stages, pipelines;
+
+        Pipeline(int stages, int pipelines){
+            this.stages = stages;
+            this.pipelines = pipelines;
+        }
+
+        @Override
+        String name() {
+            return stages + "-stage pipelines";
+        }
+
+        @Override
+        long operations() {
+            return (long)stages * pipelines;
+        }
+
+        @Override
+        void run() throws Exception {
+            final Promise.Convert<Integer, Integer> convert = new Promise.Convert<Integer, Integer>() {
+                @Override
+                public void convert(Promise.Defer<Integer> defer, Integer result) throws Exception {
+                    defer.resolveWithResult(result + 1);
+                }
+            };
+            final Promise.PromiseRunnable<Integer> runnable = new Promise.PromiseRunnable<Integer>() {
+                @Override
+                public void run(Integer result) {
+                }
+            };
+            final Promise.Filter<Integer, Integer> filter = new Promise.Filter<Integer, Integer>() {
+                @Override
+                public void filter(Promise.Defer<Integer> defer, boolean successful, Integer result, Exception exception) {
+                    defer.resolveWithResult(result);
+                }
+            };
+            long total = 0;
+            for ( int i = 0; i < pipelines; i++ ) {
+                Promise.Defer<Integer> defer = Promise.defer();
+                Promise<Integer> promise = defer.promise;
+                for ( int s = 0; s < stages; s++ ) {
+                    switch ( s % 3 ) {
+                        case 0: promise = promise.then(convert); break;
+                        case 1: promise = promise.then(runnable); break;
+                        default: promise = promise.filter(filter); break;
+                    }
+                }
+                defer.resolveWithResult(0);
+                total += promise.getResult();
+            }
+            if ( total != (long)pipelines * ((stages + 2) / 3) ) {
+                throw new IllegalStateException("Unexpected pipeline result " + total);
+            }
+        }
+    }
+
+    /**
+     * The Pipeline scenario written against CompletableFuture.thenApply, for comparison.
+     */
+    static class CompletableFuturePipeline extends Scenario {
+        private final int stages, pipelines;
+
+        CompletableFuturePipeline(int stages, int pipelines){
+            this.stages = stages;
+            this.pipelines = pipelines;
+        }
+
+        @Override
+        String name() {
+            return stages + "-stage CompletableFuture pipelines";
+        }
+
+        @Override
+        long operations() {
+            return (long)stages * pipelines;
+        }
+
+        @Override
+        void run() throws Exception {
+            final Function<Integer, Integer> increment = new Function<Integer, Integer>() {
+                @Override
+                public Integer apply(Integer result) {
+                    return result + 1;
+                }
+            };
+            final Function<Integer, Integer> identity = new Function<Integer, Integer>() {
+                @Override
+                public Integer apply(Integer result) {
+                    return result;
+                }
+            };
+            long total = 0;
+            for ( int i = 0; i < pipelines; i++ ) {
+                CompletableFuture<Integer> source = new CompletableFuture<>();
+                CompletableFuture<Integer> future = source;
+                for ( int s = 0; s < stages; s++ ) {
+                    future = future.thenApply(s % 3 == 0 ? increment : identity);
+                }
+                source.complete(0);
+                total += future.join();
+            }
+            if ( total != (long)pipelines * ((stages + 2) / 3) ) {
+                throw new IllegalStateException("Unexpected pipeline result " + total);
+            }
+        }
+    }
+
+    /**
+     * Round trip of a value through a continuation on an executor thread and back to a joining caller,
+     * with Promise.thenOn or CompletableFuture.thenApplyAsync. Time per operation is the hand-off latency.
+     */
+    static class ExecutorHandOff extends Scenario {
+        private final boolean completableFuture;
+        private final int rounds;
+
+        ExecutorHandOff(boolean completableFuture, int rounds){
+            this.completableFuture = completableFuture;
+            this.rounds = rounds;
+        }
+
+        @Override
+        String name() {
+            return (completableFuture ? "CompletableFuture" : "Promise") + " executor hand-off";
+        }
+
+        @Override
+        long operations() {
+            return rounds;
+        }
+
+        @Override
+        void run() throws Exception {
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                final Promise.Convert<Integer, Integer> convert = new Promise.Convert<Integer, Integer>() {
+                    @Override
+                    public void convert(Promise.Defer<Integer> defer, Integer result) throws Exception {
+                        defer.resolveWithResult(result + 1);
+                    }
+                };
+                final Function<Integer, Integer> increment = new Function<Integer, Integer>() {
+                    @Override
+                    public Integer apply(Integer result) {
+                        return result + 1;
+                    }
+                };
+                for ( int i = 0; i < rounds; i++ ) {
+                    int result;
+                    if ( completableFuture ) {
+                        CompletableFuture<Integer> source = new CompletableFuture<>();
+                        CompletableFuture<Integer> future = source.thenApplyAsync(increment, executor);
+                        source.complete(i);
+                        result = future.join();
+                    }
+                    else {
+                        Promise.Defer<Integer> defer = Promise.defer();
+                        Promise<Integer> promise = defer.promise.thenOn(executor, convert);
+                        defer.resolveWithResult(i);
+                        result = promise.join();
+                    }
+                    if ( result != i + 1 ) {
+                        throw new IllegalStateException("Unexpected hand-off result " + result);
+                    }
+                }
+            } finally {
+                executor.shutdown();
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.threeplay.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class PromiseFutureTest {
+
+    private final Promise.Defer<Integer> defer = Promise.defer();
+    private final PromiseFuture<Integer> future = new PromiseFuture<>(defer.promise);
+
+    @Test
+    public void get_returns_the_result() throws Exception {
+        defer.resolveWithResult(3);
+        assertThat(future.isDone(), is(true));
+        assertThat(future.get(), is(3));
+    }
+
+    @Test
+    public void rejection_is_wrapped_in_an_execution_exception() throws Exception {
+        IOException e = new IOException();
+        defer.rejectWithException(e);
+        try {
+            future.get();
+            throw new AssertionError("expected an ExecutionException");
+        } catch ( ExecutionException ok ) {
+            assertThat(ok.getCause(), is((Throwable)e));
+        }
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void get_times_out_while_pending() throws Exception {
+        future.get(10, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void canceling_the_future_cancels_the_promise(){
+        assertThat(future.cancel(true), is(true));
+        assertThat(future.isCancelled(), is(true));
+        assertThat(defer.isCanceled(), is(true));
+    }
+
+    @Test(expected = CancellationException.class)
+    public void canceled_promise_cancels_the_future() throws Exception {
+        defer.promise.cancel();
+        assertThat(future.isCancelled(), is(true));
+        future.get();
+    }
+
+    @Test
+    public void promise_of_a_future_resolves_with_its_result() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> task = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return 5;
+                }
+            });
+            assertThat(PromiseFuture.promise(task, executor).join(1, TimeUnit.SECONDS), is(5));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void promise_of_a_failed_future_is_rejected_with_the_cause(){
+        final IOException e = new IOException();
+        FutureTask<Integer> task = new FutureTask<>(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                throw e;
+            }
+        });
+        task.run();
+        PromiseTest.QueuedExecutor executor = new PromiseTest.QueuedExecutor();
+        Promise<Integer> p = PromiseFuture.promise(task, executor);
+        assertThat(p.wasTriggered(), is(false));
+        executor.runAll();
+        assertThat(p.getException(), is((Exception)e));
+    }
+
+    @Test
+    public void canceling_the_promise_of_a_future_cancels_the_future(){
+        FutureTask<Integer> task = new FutureTask<>(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return 1;
+            }
+        });
+        PromiseTest.QueuedExecutor executor = new PromiseTest.QueuedExecutor();
+        Promise<Integer> p = PromiseFuture.promise(task, executor);
+        p.cancel();
+        assertThat(task.isCancelled(), is(true));
+        executor.runAll();
+        assertThat(p.isCanceled(), is(true));
+    }
+}
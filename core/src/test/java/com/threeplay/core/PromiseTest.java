@@ -7,6 +7,11 @@ import java.io.InputStream;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
@@ -217,6 +222,47 @@ public class PromiseTest {
         assertThat(tester.log, is("12"));
     }
 
+    @Test
+    public void handlers_on_the_same_promise_observe_the_original_result(){
+        deferred.then(new Promise.Handler<Integer>() {
+            @Override
+            public void trigger(Promise.Triggered<Integer> p) throws Exception {
+                p.successfulWithResult(p.getResult() + 1);
+            }
+        });
+        deferred.then(new Promise.Handler<Integer>() {
+            @Override
+            public void trigger(Promise.Triggered<Integer> p) throws Exception {
+                tester.invoked(p.getResult().toString());
+            }
+        });
+        deferred.resolveWithResult(1);
+        assertThat(tester.log, is("1"));
+    }
+
+    @Test
+    public void handlers_attached_concurrently_are_all_invoked(){
+        final AtomicInteger invoked = new AtomicInteger();
+        final ThreadTesting threads = new ThreadTesting();
+        threads.deferred = deferred;
+        threads.startThread(8, new Runnable() {
+            @Override
+            public void run() {
+                for ( int i = 0; i < 100; i++ ) {
+                    threads.deferred.promise.any(new Runnable() {
+                        @Override
+                        public void run() {
+                            invoked.incrementAndGet();
+                        }
+                    });
+                }
+            }
+        });
+        deferred.resolveWithResult(0);
+        threads.join(10);
+        assertThat(invoked.get(), is(800));
+    }
+
     @Test
     public void late_binding_trigger(){
         deferred.resolveWithResult(0);
@@ -325,6 +371,162 @@ public class PromiseTest {
         tester.assertInvoked();
     }
 
+    @Test
+    public void Promise_all_of_no_promises_resolves_with_an_empty_list(){
+        Promise.all(new LinkedList<Promise<Integer>>()).then(tester.handler("T"));
+        assertThat(tester.log, is("T"));
+    }
+
+    @Test
+    public void Promise_fromList_resolves_with_results_in_list_order(){
+        final List<Promise.Defer<Integer>> defers = new LinkedList<>();
+        Promise.fromList(Arrays.asList(1, 2, 3), new Promise.ListDefer<Integer, Integer>() {
+            @Override
+            public void trigger(Promise.Defer<Integer> defer, Integer value) throws Exception {
+                defers.add(0, defer);
+            }
+        }).then(new Promise.Handler<List<Integer>>() {
+            @Override
+            public void trigger(Promise.Triggered<List<Integer>> p) throws Exception {
+                assertThat(p.getResult(), contains(1, 2, 3));
+                tester.invoked();
+            }
+        });
+        for ( int i = 0; i < 3; i++ ) {
+            defers.get(i).resolveWithResult(3 - i);
+        }
+        tester.assertInvoked();
+    }
+
+    @Test
+    public void Promise_mapConcurrent_keeps_at_most_n_entries_in_flight(){
+        final List<Promise.Defer<Integer>> inFlight = new LinkedList<>();
+        final Promise<List<Integer>> p = Promise.mapConcurrent(Arrays.asList(1, 2, 3, 4, 5), 2, new Promise.ListDefer<Integer, Integer>() {
+            @Override
+            public void trigger(Promise.Defer<Integer> defer, Integer value) throws Exception {
+                inFlight.add(defer);
+                tester.invoked(value.toString());
+            }
+        });
+        assertThat(tester.log, is("12"));
+        assertThat(inFlight.size(), is(2));
+        inFlight.get(1).resolveWithResult(20);
+        assertThat(tester.log, is("123"));
+        inFlight.get(0).resolveWithResult(10);
+        inFlight.get(2).resolveWithResult(30);
+        assertThat(tester.log, is("12345"));
+        inFlight.get(4).resolveWithResult(50);
+        assertThat(p.wasTriggered(), is(false));
+        inFlight.get(3).resolveWithResult(40);
+        assertThat(p.wasSuccessful(), is(true));
+        assertThat(p.getResult(), contains(10, 20, 30, 40, 50));
+    }
+
+    @Test
+    public void Promise_mapConcurrent_stops_starting_entries_after_a_failure(){
+        final List<Promise.Defer<Integer>> inFlight = new LinkedList<>();
+        Promise<List<Integer>> p = Promise.mapConcurrent(Arrays.asList(1, 2, 3), 1, new Promise.ListDefer<Integer, Integer>() {
+            @Override
+            public void trigger(Promise.Defer<Integer> defer, Integer value) throws Exception {
+                inFlight.add(defer);
+            }
+        });
+        Exception e = new Exception();
+        inFlight.get(0).rejectWithException(e);
+        assertThat(p.getException(), is(e));
+        assertThat(inFlight.size(), is(1));
+    }
+
+    @Test
+    public void Promise_mapConcurrent_resolves_synchronous_entries_in_order(){
+        List<Integer> keys = new LinkedList<>();
+        for ( int i = 0; i < 10000; i++ ) {
+            keys.add(i);
+        }
+        Promise<List<Integer>> p = Promise.mapConcurrent(keys, 4, new Promise.ListDefer<Integer, Integer>() {
+            @Override
+            public void trigger(Promise.Defer<Integer> defer, Integer value) throws Exception {
+                defer.resolveWithResult(value * 2);
+            }
+        });
+        assertThat(p.getResult().size(), is(10000));
+        assertThat(p.getResult().get(9999), is(19998));
+    }
+
+    @Test
+    public void canceling_mapConcurrent_cancels_the_entries_in_flight(){
+        final List<Promise.Defer<Integer>> inFlight = new LinkedList<>();
+        Promise<List<Integer>> p = Promise.mapConcurrent(Arrays.asList(1, 2, 3), 2, new Promise.ListDefer<Integer, Integer>() {
+            @Override
+            public void trigger(Promise.Defer<Integer> defer, Integer value) throws Exception {
+                inFlight.add(defer);
+            }
+        });
+        p.cancel();
+        assertThat(inFlight.size(), is(2));
+        assertThat(inFlight.get(0).isCanceled(), is(true));
+        assertThat(inFlight.get(1).isCanceled(), is(true));
+    }
+
+    @Test
+    public void Promise_allSettled_reports_every_outcome_in_order(){
+        List<Promise.Defer<Integer>> deferded = createDefered(2);
+        final Exception e = new Exception();
+        Promise.allSettled(deferded.get(0).promise, deferded.get(1).promise)
+                .then(new Promise.Handler<List<Promise.Settled<Integer>>>() {
+                    @Override
+                    public void trigger(Promise.Triggered<List<Promise.Settled<Integer>>> p) throws Exception {
+                        List<Promise.Settled<Integer>> result = p.getResult();
+                        assertThat(result.get(0).wasSuccessful(), is(false));
+                        assertThat(result.get(0).getException(), is(e));
+                        assertThat(result.get(1).wasSuccessful(), is(true));
+                        assertThat(result.get(1).getResult(), is(2));
+                        tester.invoked();
+                    }
+                });
+        deferded.get(0).rejectWithException(e);
+        tester.assertNotInvoked();
+        deferded.get(1).resolveWithResult(2);
+        tester.assertInvoked();
+    }
+
+    @Test
+    public void Promise_race_follows_the_first_triggered_promise(){
+        List<Promise.Defer<Integer>> deferded = createDefered(2);
+        Promise.race(deferded.get(0).promise, deferded.get(1).promise).then(tester.handler("T"), tester.handler("F"));
+        deferded.get(1).rejectWithException(new Exception());
+        deferded.get(0).resolveWithResult(1);
+        assertThat(tester.log, is("F"));
+    }
+
+    @Test
+    public void Promise_any_resolves_with_the_first_success(){
+        List<Promise.Defer<Integer>> deferded = createDefered(3);
+        Promise.any(deferded.get(0).promise, deferded.get(1).promise, deferded.get(2).promise)
+                .filter(Promise.<Integer>toStringFilter()).then(tester.logString());
+        deferded.get(0).rejectWithException(new Exception());
+        deferded.get(2).resolveWithResult(3);
+        deferded.get(1).resolveWithResult(2);
+        assertThat(tester.log, is("3"));
+    }
+
+    @Test
+    public void Promise_any_rejects_with_all_exceptions_when_every_promise_fails(){
+        List<Promise.Defer<Integer>> deferded = createDefered(2);
+        final Exception e1 = new Exception(), e2 = new Exception();
+        Promise.any(deferded.get(0).promise, deferded.get(1).promise).fail(new Promise.Handler<Integer>() {
+            @Override
+            public void trigger(Promise.Triggered<Integer> p) throws Exception {
+                assertThat(((Promise.AllFailedException)p.getException()).getExceptions(), contains(e1, e2));
+                tester.invoked();
+            }
+        });
+        deferded.get(1).rejectWithException(e2);
+        tester.assertNotInvoked();
+        deferded.get(0).rejectWithException(e1);
+        tester.assertInvoked();
+    }
+
     @Test
     public void Promise_can_then_a_defer_block_and_trasfer_state_to_it(){
         Promise.Defer middleDefer = Promise.defer();
@@ -355,6 +557,60 @@ public class PromiseTest {
         assertThat(tester.log, is("Filtered:1"));
     }
 
+    @Test
+    public void Filter_that_throws_rejects_the_filtered_promise(){
+        final RuntimeException e = new IllegalStateException();
+        Promise<String> p = deferred.promise.filter(new Promise.Filter<Integer, String>() {
+            @Override
+            public void filter(Promise.Defer<String> defer, boolean successful, Integer result, Exception exception) {
+                throw e;
+            }
+        });
+        deferred.resolveWithResult(1);
+        assertThat(p.getException(), is((Exception)e));
+    }
+
+    @Test
+    public void PromiseRunnable_stage_forwards_the_outcome_it_observed(){
+        final Exception e = new Exception();
+        Promise<Integer> p = deferred.promise.then(new Promise.PromiseRunnable<Integer>() {
+            @Override
+            public void run(Integer result) {
+                tester.invoked("R");
+            }
+        });
+        deferred.rejectWithException(e);
+        assertThat(tester.log, is(""));
+        assertThat(p.getException(), is(e));
+    }
+
+    @Test
+    public void Runnable_stage_runs_only_on_success_and_forwards_a_failure(){
+        final Exception e = new Exception();
+        Promise<Integer> p = deferred.promise.then(new Runnable() {
+            @Override
+            public void run() {
+                tester.invoked("R");
+            }
+        });
+        deferred.rejectWithException(e);
+        assertThat(tester.log, is(""));
+        assertThat(p.getException(), is(e));
+    }
+
+    @Test
+    public void Runnable_stage_forwards_the_result(){
+        Promise<Integer> p = deferred.promise.then(new Runnable() {
+            @Override
+            public void run() {
+                tester.invoked("R");
+            }
+        });
+        deferred.resolveWithResult(5);
+        assertThat(tester.log, is("R"));
+        assertThat(p.getResult(), is(5));
+    }
+
     @Test
     public void ToString_filter_converts_Object_to_string(){
         deferred.promise.filter(Promise.<Integer>toStringFilter()).then(tester.logString());
@@ -404,6 +660,369 @@ public class PromiseTest {
         assertThat(triggerCopy[0].getResult(), is(not(nullValue())));
     }
 
+    @Test
+    public void thenOn_runs_handler_on_the_given_executor(){
+        QueuedExecutor executor = new QueuedExecutor();
+        deferred.promise.thenOn(executor, tester.handler("1")).then(tester.handler("2"));
+        deferred.resolveWithResult(0);
+        assertThat(tester.log, is(""));
+        executor.runAll();
+        assertThat(tester.log, is("12"));
+    }
+
+    @Test
+    public void failOn_runs_handler_on_the_given_executor(){
+        QueuedExecutor executor = new QueuedExecutor();
+        deferred.promise.failOn(executor, tester.handler("F"));
+        deferred.rejectWithException(new Exception());
+        assertThat(tester.log, is(""));
+        executor.runAll();
+        assertThat(tester.log, is("F"));
+    }
+
+    @Test
+    public void thenOn_converts_on_the_given_executor(){
+        QueuedExecutor executor = new QueuedExecutor();
+        deferred.promise.thenOn(executor, new Promise.Convert<Integer, String>() {
+            @Override
+            public void convert(Promise.Defer<String> defer, Integer result) throws Exception {
+                defer.resolveWithResult("Converted:" + result);
+            }
+        }).then(tester.logString());
+        deferred.resolveWithResult(1);
+        assertThat(tester.log, is(""));
+        executor.runAll();
+        assertThat(tester.log, is("Converted:1"));
+    }
+
+    @Test
+    public void anyOn_with_null_executor_uses_the_default_executor(){
+        QueuedExecutor executor = new QueuedExecutor();
+        Promise.setDefaultExecutor(executor);
+        try {
+            deferred.promise.anyOn(null, tester.handler("A"));
+        } finally {
+            Promise.setDefaultExecutor(null);
+        }
+        deferred.resolveWithResult(0);
+        assertThat(tester.log, is(""));
+        executor.runAll();
+        assertThat(tester.log, is("A"));
+    }
+
+    @Test
+    public void rejected_execution_rejects_the_continuation(){
+        deferred.promise.thenOn(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                throw new RejectedExecutionException("rejected");
+            }
+        }, tester.handler("T")).fail(tester.logException());
+        deferred.resolveWithResult(0);
+        assertThat(tester.log, is("rejected"));
+    }
+
+    @Test
+    public void join_returns_result_of_a_triggered_promise() throws Exception {
+        deferred.resolveWithResult(5);
+        assertThat(deferred.promise.join(), is(5));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void join_throws_the_exception_of_a_rejected_promise() throws Exception {
+        deferred.rejectWithException(new IllegalStateException());
+        deferred.promise.join();
+    }
+
+    @Test
+    public void join_waits_for_promise_to_be_triggered_by_another_thread() throws Exception {
+        resolveLater(deferred, 7, 20);
+        assertThat(deferred.promise.join(), is(7));
+    }
+
+    @Test
+    public void join_with_timeout_returns_result_when_triggered_in_time() throws Exception {
+        resolveLater(deferred, 7, 20);
+        assertThat(deferred.promise.join(5, TimeUnit.SECONDS), is(7));
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void join_with_timeout_throws_when_timeout_elapses() throws Exception {
+        deferred.promise.join(10, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void join_that_times_out_leaves_nothing_attached() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        Promise.setTracer(new PromiseTracer() {
+            @Override
+            public void created(Promise<?> promise) {
+                created.incrementAndGet();
+            }
+
+            @Override
+            public void linked(Promise<?> promise, Promise<?> parent) {
+            }
+
+            @Override
+            public void triggered(Promise<?> promise, boolean successful) {
+            }
+
+            @Override
+            public void handlerStarted(Promise<?> source, Promise<?> next) {
+            }
+
+            @Override
+            public void handlerFinished(Promise<?> source, Promise<?> next) {
+            }
+        });
+        try {
+            for ( int i = 0; i < 20; i++ ) {
+                try {
+                    deferred.promise.join(1, TimeUnit.MILLISECONDS);
+                } catch ( TimeoutException e ) {
+                }
+            }
+            assertThat(created.get(), is(0));
+        } finally {
+            Promise.setTracer(null);
+        }
+        resolveLater(deferred, 7, 20);
+        assertThat(deferred.promise.join(5, TimeUnit.SECONDS), is(7));
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void joinInterruptibly_throws_when_thread_is_interrupted() throws Exception {
+        Thread.currentThread().interrupt();
+        deferred.promise.joinInterruptibly();
+    }
+
+    @Test
+    public void join_keeps_interrupt_pending_while_waiting() throws Exception {
+        resolveLater(deferred, 7, 20);
+        Thread.currentThread().interrupt();
+        assertThat(deferred.promise.join(), is(7));
+        assertThat(Thread.interrupted(), is(true));
+    }
+
+    @Test
+    public void long_chains_are_dispatched_without_growing_the_stack() throws Exception {
+        final AtomicInteger invoked = new AtomicInteger();
+        Thread thread = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                Promise<Integer> promise = deferred.promise;
+                for ( int i = 0; i < 100000; i++ ) {
+                    promise = promise.then(new Promise.Handler<Integer>() {
+                        @Override
+                        public void trigger(Promise.Triggered<Integer> p) throws Exception {
+                            invoked.incrementAndGet();
+                        }
+                    });
+                }
+                deferred.resolveWithResult(0);
+            }
+        }, "chain", 256 * 1024);
+        thread.start();
+        thread.join();
+        assertThat(invoked.get(), is(100000));
+    }
+
+    @Test
+    public void join_inside_a_handler_dispatches_work_queued_on_the_same_thread() throws Exception {
+        final Promise.Defer<Integer> inner = Promise.defer();
+        final Promise<Integer> converted = inner.promise.then(new Promise.Convert<Integer, Integer>() {
+            @Override
+            public void convert(Promise.Defer<Integer> defer, Integer result) throws Exception {
+                defer.resolveWithResult(result + 1);
+            }
+        });
+        deferred.promise.then(new Promise.Handler<Integer>() {
+            @Override
+            public void trigger(Promise.Triggered<Integer> p) throws Exception {
+                inner.resolveWithResult(p.getResult());
+                tester.invoked(converted.join(1, TimeUnit.SECONDS).toString());
+            }
+        });
+        deferred.resolveWithResult(1);
+        assertThat(tester.log, is("2"));
+    }
+
+    @Test
+    public void cancel_rejects_the_promise_with_a_cancellation_exception(){
+        Promise<Integer> p = deferred.promise.then(tester.handler("T"));
+        p.fail(new Promise.Handler<Integer>() {
+            @Override
+            public void trigger(Promise.Triggered<Integer> p) throws Exception {
+                tester.invoked(p.getException().getClass().getSimpleName());
+            }
+        });
+        assertThat(p.cancel(), is(true));
+        assertThat(p.isCanceled(), is(true));
+        assertThat(tester.log, is("CancellationException"));
+    }
+
+    @Test
+    public void cannot_cancel_a_triggered_promise(){
+        deferred.resolveWithResult(1);
+        assertThat(deferred.promise.cancel(), is(false));
+        assertThat(deferred.promise.isCanceled(), is(false));
+    }
+
+    @Test
+    public void cancel_propagates_upstream_to_the_producer(){
+        deferred.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                tester.invoked("C");
+            }
+        });
+        Promise<String> p = deferred.promise
+                .then(tester.handler("1"))
+                .then(new Promise.Convert<Integer, String>() {
+                    @Override
+                    public void convert(Promise.Defer<String> defer, Integer result) throws Exception {
+                        defer.resolveWithResult(result.toString());
+                    }
+                })
+                .filter(Promise.<String>toStringFilter());
+        p.cancel();
+        assertThat(deferred.isCanceled(), is(true));
+        assertThat(tester.log, is("C"));
+        assertThat(deferred.resolveWithResult(1), is(nullValue()));
+    }
+
+    @Test
+    public void cancel_does_not_propagate_while_other_dependents_wait(){
+        Promise<Integer> p1 = deferred.promise.then(tester.handler("1"));
+        deferred.promise.then(tester.handler("2"));
+        p1.cancel();
+        assertThat(deferred.isCanceled(), is(false));
+        deferred.resolveWithResult(0);
+        assertThat(tester.log, is("2"));
+    }
+
+    @Test
+    public void cancel_propagates_once_every_dependent_was_canceled(){
+        Promise<Integer> p1 = deferred.promise.then(tester.handler("1"));
+        Promise<Integer> p2 = deferred.promise.then(tester.handler("2"));
+        p1.cancel();
+        p2.cancel();
+        assertThat(deferred.isCanceled(), is(true));
+    }
+
+    @Test
+    public void cancel_propagates_to_the_promise_a_handler_continues_after(){
+        final Promise.Defer<Integer> inner = Promise.defer();
+        Promise<Integer> p = deferred.promise.then(new Promise.Handler<Integer>() {
+            @Override
+            public void trigger(Promise.Triggered<Integer> p) throws Exception {
+                p.continueAfterPromise(inner.promise);
+            }
+        });
+        deferred.resolveWithResult(0);
+        p.cancel();
+        assertThat(inner.isCanceled(), is(true));
+    }
+
+    @Test
+    public void onCancel_runs_immediately_when_already_canceled(){
+        deferred.promise.cancel();
+        deferred.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                tester.invoked("C");
+            }
+        });
+        assertThat(tester.log, is("C"));
+    }
+
+    @Test
+    public void timeout_cancels_the_source_with_a_timeout_exception() throws Exception {
+        final Promise.Defer<String> canceled = Promise.defer();
+        deferred.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                canceled.resolveWithResult("C");
+            }
+        });
+        Promise<Integer> p = deferred.promise.timeout(20);
+        try {
+            p.join(1, TimeUnit.SECONDS);
+            throw new AssertionError("expected a timeout");
+        } catch ( TimeoutException e ) {
+            assertThat(p.isCanceled(), is(true));
+        }
+        assertThat(canceled.promise.join(1, TimeUnit.SECONDS), is("C"));
+    }
+
+    @Test
+    public void timeout_forwards_a_result_triggered_in_time() throws Exception {
+        int pending = HashedWheelTimer.shared().pendingTimeouts();
+        Promise<Integer> p = deferred.promise.timeout(1000);
+        resolveLater(deferred, 5, 10);
+        assertThat(p.join(1, TimeUnit.SECONDS), is(5));
+        long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while ( HashedWheelTimer.shared().pendingTimeouts() > pending && System.nanoTime() < giveUp ) {
+            Thread.sleep(1);
+        }
+        assertThat(HashedWheelTimer.shared().pendingTimeouts() <= pending, is(true));
+    }
+
+    @Test
+    public void delay_resolves_after_the_given_time() throws Exception {
+        long start = System.nanoTime();
+        Promise.delay(30).join(1, TimeUnit.SECONDS);
+        assertThat(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(30), is(true));
+    }
+
+    @Test
+    public void canceling_a_delay_cancels_its_timer(){
+        int pending = HashedWheelTimer.shared().pendingTimeouts();
+        Promise<Void> p = Promise.delay(10000);
+        p.cancel();
+        assertThat(HashedWheelTimer.shared().pendingTimeouts(), is(pending));
+    }
+
+    @Test
+    public void deadline_cancels_a_defer_the_producer_did_not_trigger() throws Exception {
+        final Promise.Defer<Integer> defer = Promise.<Integer>defer().deadline(20);
+        final Promise.Defer<String> canceled = Promise.defer();
+        defer.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                canceled.resolveWithResult("C");
+            }
+        });
+        assertThat(canceled.promise.join(1, TimeUnit.SECONDS), is("C"));
+        assertThat(defer.resolveWithResult(1), is(nullValue()));
+    }
+
+    private static void resolveLater(final Promise.Defer<Integer> defer, final int result, final long delay){
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try { Thread.sleep(delay); } catch ( InterruptedException ok ) {}
+                defer.resolveWithResult(result);
+            }
+        }).start();
+    }
+
+    static class QueuedExecutor implements Executor {
+        private final List<Runnable> queue = new LinkedList<>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            queue.add(runnable);
+        }
+
+        void runAll(){
+            while ( !queue.isEmpty() ) {
+                queue.remove(0).run();
+            }
+        }
+    }
+
     private <T> List<Promise.Defer<T>> createDefered(int count){
         List<Promise.Defer<T>> deferList = new LinkedList<>();
         while ( count-- > 0 ){
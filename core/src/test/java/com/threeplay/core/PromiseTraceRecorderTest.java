@@ -0,0 +1,92 @@
+package com.threeplay.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class PromiseTraceRecorderTest {
+
+    private PromiseTraceRecorder recorder;
+
+    @Before
+    public void setup(){
+        recorder = new PromiseTraceRecorder(100);
+        Promise.setTracer(recorder);
+    }
+
+    @After
+    public void teardown(){
+        Promise.setTracer(null);
+    }
+
+    @Test
+    public void records_the_chain_of_stages(){
+        Promise.Defer<Integer> defer = Promise.defer();
+        defer.promise.then(new Promise.Handler<Integer>() {
+            @Override
+            public void trigger(Promise.Triggered<Integer> p) throws Exception {
+                p.successfulWithResult(p.getResult() + 1);
+            }
+        });
+        defer.resolveWithResult(1);
+        List<PromiseTraceRecorder.Stage> stages = recorder.getStages();
+        assertThat(stages.size(), is(2));
+        PromiseTraceRecorder.Stage source = stages.get(0), next = stages.get(1);
+        assertThat(source.getParent(), is(nullValue()));
+        assertThat(next.getParent(), is(source));
+        assertThat(next.wasSuccessful(), is(true));
+        assertThat(next.getHandlerRanOn(), is(Thread.currentThread().getName()));
+        assertThat(next.getHandlerStartedAt() >= source.getTriggeredAt(), is(true));
+        assertThat(next.getTriggeredAt() >= next.getHandlerFinishedAt(), is(true));
+        assertThat(next.getQueuedTime() >= 0, is(true));
+    }
+
+    @Test
+    public void untriggered_stages_have_no_trigger_time(){
+        Promise.defer();
+        assertThat(recorder.getStages().get(0).getTriggeredAt(), is(-1L));
+    }
+
+    @Test
+    public void stops_recording_at_capacity(){
+        for ( int i = 0; i < 200; i++ ) {
+            Promise.defer();
+        }
+        assertThat(recorder.getStages().size(), is(100));
+    }
+
+    @Test
+    public void nothing_is_recorded_once_the_tracer_is_removed(){
+        Promise.setTracer(null);
+        Promise.withResult(1).then(new Promise.Handler<Integer>() {
+            @Override
+            public void trigger(Promise.Triggered<Integer> p) throws Exception {
+            }
+        });
+        assertThat(recorder.getStages().size(), is(0));
+    }
+
+    @Test
+    public void exports_chrome_trace_events() throws Exception {
+        Promise.withResult(1).then(new Promise.Handler<Integer>() {
+            @Override
+            public void trigger(Promise.Triggered<Integer> p) throws Exception {
+            }
+        });
+        StringWriter writer = new StringWriter();
+        recorder.writeChromeTrace(writer);
+        String json = writer.toString();
+        assertThat(json, containsString("{\"traceEvents\":["));
+        assertThat(json, containsString("\"name\":\"promise #1\",\"cat\":\"promise\",\"ph\":\"b\""));
+        assertThat(json, containsString("\"name\":\"handler #2\",\"cat\":\"handler\",\"ph\":\"X\""));
+        assertThat(json, containsString("\"args\":{\"parent\":1}"));
+    }
+}
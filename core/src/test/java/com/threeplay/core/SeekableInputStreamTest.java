@@ -1,9 +1,18 @@
 package com.threeplay.core;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 
@@ -12,6 +21,9 @@ import static org.hamcrest.Matchers.is;
  */
 public class SeekableInputStreamTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private SeekableInputStream stream;
 
     @Before
@@ -185,6 +197,238 @@ public class SeekableInputStreamTest {
         assertThat(arrayBytePrefix(buf, new byte[]{0,0,0,0,0,0,1,2,3,4}), is(true));
     }
 
+    @Test
+    public void read_64bits(){
+        assertThat(stream.next64LEbits(), is(0x0706050403020100L));
+        assertThat(stream.next64BEbits(), is(0x08090a0b0c0d0e0fL));
+    }
+
+    @Test
+    public void unsigned_values(){
+        stream = new SeekableInputStream(mockInput(100L, 0x80));
+        assertThat(stream.nextUnsignedByte(), is(0x80));
+        stream.rewind();
+        assertThat(stream.nextByte(), is((int)(byte)0x80));
+        assertThat(stream.nextUnsigned32LEbits(), is(0x84838281L));
+        assertThat(stream.nextUnsigned32BEbits(), is(0x85868788L));
+    }
+
+    @Test
+    public void read_floats_and_doubles(){
+        ByteBuffer bytes = ByteBuffer.allocate(24);
+        bytes.order(ByteOrder.LITTLE_ENDIAN).putFloat(1.5f).putDouble(-2.25);
+        bytes.order(ByteOrder.BIG_ENDIAN).putFloat(3.5f).putDouble(1e100);
+        SeekableInputStream floats = SeekableInputStream.fromBytes(bytes.array());
+        assertThat(floats.nextFloatLE(), is(1.5f));
+        assertThat(floats.nextDoubleLE(), is(-2.25));
+        assertThat(floats.nextFloatBE(), is(3.5f));
+        assertThat(floats.nextDoubleBE(), is(1e100));
+        assertThat(Double.isNaN(floats.nextDoubleLE()), is(true));
+    }
+
+    @Test
+    public void reading_past_the_end_consumes_the_stream_and_returns_neg_1(){
+        stream.seek(97);
+        assertThat(stream.next32LEbits(), is(-1));
+        assertThat(stream.availableBytes(), is(0L));
+        stream.seek(95);
+        assertThat(stream.next64BEbits(), is(-1L));
+    }
+
+    @Test
+    public void values_spanning_the_read_ahead_buffer_are_read_across_refills(){
+        stream = new SeekableInputStream(mockInput(10000L));
+        stream.seek(4094);
+        assertThat(stream.next32BEbits(), is(0xfeff0001));
+        stream.seek(1);
+        assertThat(stream.next16LEbits(), is(0x0201));
+        byte[] buf = new byte[3];
+        stream.seek(4097);
+        assertThat(stream.nextBytes(buf), is(3));
+        assertThat(arrayBytePrefix(buf, new byte[]{1, 2, 3}), is(true));
+    }
+
+    @Test
+    public void stream_from_mapped_file() throws IOException {
+        SeekableInputStream mapped = SeekableInputStream.fromFileMapped(fileOf(100));
+        assertThat(mapped.availableBytes(), is(100L));
+        assertThat(mapped.next32LEbits(), is(0x03020100));
+        mapped.seek(98);
+        assertThat(mapped.next16BEbits(), is(0x6263));
+        assertThat(mapped.nextByte(), is(-1));
+    }
+
+    @Test
+    public void mapped_reads_cross_window_boundaries() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileOf(100), "r");
+        SeekableInputStream mapped = new SeekableInputStream(new SeekableInputStream.MappedFileInput(file.getChannel(), 16, 2));
+        mapped.seek(14);
+        assertThat(mapped.next32BEbits(), is(0x0e0f1011));
+        byte[] buf = new byte[40];
+        mapped.seek(70);
+        assertThat(mapped.nextBytes(buf), is(30));
+        assertThat(arrayBytePrefix(buf, new byte[]{70, 71, 72}), is(true));
+        assertThat(buf[29], is((byte)99));
+        file.close();
+    }
+
+    @Test
+    public void mapped_reads_past_the_live_windows_remap_them() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileOf(100), "r");
+        SeekableInputStream mapped = new SeekableInputStream(new SeekableInputStream.MappedFileInput(file.getChannel(), 16, 2));
+        for ( int pass = 0; pass < 2; pass++ ) {
+            mapped.seek(0);
+            for ( int i = 0; i < 100; i++ ) {
+                assertThat(mapped.nextUnsignedByte(), is(i));
+            }
+        }
+        file.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failing_to_map_is_not_the_end_of_the_stream() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileOf(100), "r");
+        SeekableInputStream mapped = new SeekableInputStream(new SeekableInputStream.MappedFileInput(file.getChannel(), 16, 2));
+        file.close();
+        mapped.nextBytes(new byte[10]);
+    }
+
+    @Test
+    public void sibling_substreams_can_be_read_on_different_threads() throws Exception {
+        final File file = fileOf(1 << 20);
+        for ( SeekableInputStream stream: new SeekableInputStream[]{SeekableInputStream.fromFile(file), SeekableInputStream.fromFileMapped(file)} ) {
+            final int parts = 8;
+            final long length = stream.availableBytes() / parts;
+            final AtomicInteger mismatches = new AtomicInteger();
+            Thread[] threads = new Thread[parts];
+            for ( int i = 0; i < parts; i++ ) {
+                final SeekableInputStream part = stream.substream(i * length, length);
+                final long base = i * length;
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for ( long offset = base; part.availableBytes() > 0; offset++ ) {
+                            if ( part.nextUnsignedByte() != (offset & 0xff) ) mismatches.incrementAndGet();
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            for ( Thread thread: threads ) {
+                thread.join();
+            }
+            assertThat(mismatches.get(), is(0));
+        }
+    }
+
+    @Test
+    public void byte_array_substream_is_a_read_only_view(){
+        byte[] bytes = new byte[]{1, 2, 3, 4, 5, 6, 7, 8};
+        ByteBuffer view = SeekableInputStream.fromBytes(bytes).substream(2, 4).asByteBuffer();
+        assertThat(view.remaining(), is(4));
+        assertThat(view.isReadOnly(), is(true));
+        assertThat(view.get(0), is((byte)3));
+        bytes[2] = 42;
+        assertThat(view.get(0), is((byte)42));
+    }
+
+    @Test
+    public void mapped_substream_is_a_view_of_the_mapping() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileOf(100), "r");
+        SeekableInputStream mapped = new SeekableInputStream(new SeekableInputStream.MappedFileInput(file.getChannel(), 16, 2));
+        ByteBuffer view = mapped.substream(17, 10).asByteBuffer();
+        assertThat(view.isDirect(), is(true));
+        assertThat(view.remaining(), is(10));
+        assertThat(view.get(9), is((byte)26));
+        ByteBuffer spanning = mapped.substream(10, 30).asByteBuffer();
+        assertThat(spanning.remaining(), is(30));
+        assertThat(spanning.get(0), is((byte)10));
+        assertThat(spanning.get(29), is((byte)39));
+        file.close();
+    }
+
+    @Test
+    public void stream_reads_into_byte_buffers() throws IOException {
+        File file = fileOf(100);
+        SeekableInputStream[] streams = new SeekableInputStream[]{SeekableInputStream.fromFile(file),
+                SeekableInputStream.fromFileMapped(file), stream};
+        for ( SeekableInputStream stream: streams ) {
+            ByteBuffer direct = ByteBuffer.allocateDirect(8);
+            stream.seek(90);
+            assertThat(stream.nextBytes(direct), is(8));
+            assertThat(direct.position(), is(8));
+            assertThat(direct.get(7), is((byte)97));
+            ByteBuffer heap = ByteBuffer.allocate(8);
+            heap.position(4);
+            assertThat(stream.nextBytes(heap), is(2));
+            assertThat(heap.get(5), is((byte)99));
+            assertThat(stream.nextBytes(heap), is(-1));
+        }
+        assertThat(SeekableInputStream.fromFile(file).substream(3, 3).asByteBuffer().get(2), is((byte)5));
+    }
+
+    @Test
+    public void read_primitive_arrays_in_either_byte_order() throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(34);
+        bytes.order(ByteOrder.LITTLE_ENDIAN).putShort((short)-2).putShort((short)0x1234).putInt(0x01020304);
+        bytes.order(ByteOrder.BIG_ENDIAN).putLong(-5L).putLong(Long.MAX_VALUE);
+        bytes.order(ByteOrder.LITTLE_ENDIAN).putFloat(0.5f).putFloat(-8f).put(new byte[]{1, 2});
+        File file = folder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(bytes.array());
+        out.close();
+        SeekableInputStream[] streams = new SeekableInputStream[]{SeekableInputStream.fromBytes(bytes.array()),
+                SeekableInputStream.fromFile(file), SeekableInputStream.fromFileMapped(file)};
+        for ( SeekableInputStream stream: streams ) {
+            short[] shorts = new short[3];
+            assertThat(stream.readShorts(shorts, 1, 2, ByteOrder.LITTLE_ENDIAN), is(2));
+            assertThat(shorts[1], is((short)-2));
+            assertThat(shorts[2], is((short)0x1234));
+            int[] ints = new int[1];
+            assertThat(stream.readInts(ints, 0, 1, ByteOrder.LITTLE_ENDIAN), is(1));
+            assertThat(ints[0], is(0x01020304));
+            long[] longs = new long[2];
+            assertThat(stream.readLongs(longs, 0, 2, ByteOrder.BIG_ENDIAN), is(2));
+            assertThat(longs[0], is(-5L));
+            assertThat(longs[1], is(Long.MAX_VALUE));
+            float[] floats = new float[4];
+            assertThat(stream.readFloats(floats, 0, 4, ByteOrder.LITTLE_ENDIAN), is(2));
+            assertThat(floats[0], is(0.5f));
+            assertThat(floats[1], is(-8f));
+            assertThat(stream.availableBytes(), is(2L));
+            assertThat(stream.readInts(ints, 0, 1, ByteOrder.LITTLE_ENDIAN), is(-1));
+            assertThat(stream.readShorts(shorts, 0, 1, ByteOrder.BIG_ENDIAN), is(1));
+            assertThat(shorts[0], is((short)0x0102));
+        }
+    }
+
+    @Test
+    public void read_primitive_arrays_from_plain_inputs(){
+        int[] ints = new int[2];
+        stream.seek(4);
+        assertThat(stream.readInts(ints, 0, 2, ByteOrder.BIG_ENDIAN), is(2));
+        assertThat(ints[0], is(0x04050607));
+        assertThat(ints[1], is(0x08090a0b));
+        assertThat(stream.next32BEbits(), is(0x0c0d0e0f));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void read_primitive_arrays_checks_the_array_range(){
+        stream.readInts(new int[2], 1, 2, ByteOrder.BIG_ENDIAN);
+    }
+
+    private File fileOf(int size) throws IOException {
+        File file = folder.newFile();
+        byte[] bytes = new byte[size];
+        for ( int i = 0; i < size; i++ ) {
+            bytes[i] = (byte)i;
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(bytes);
+        out.close();
+        return file;
+    }
+
     private boolean arrayBytePrefix(byte array[], byte... values){
         int count = Math.min(array.length, values.length);
         for ( int i = 0; i < count; ++i ) {